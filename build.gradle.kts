@@ -1,14 +1,24 @@
 plugins {
     java
-    id("org.springframework.boot") version "3.1.2"
-    id("io.spring.dependency-management") version "1.1.2"
+    id("org.springframework.boot") version "3.2.0"
+    id("io.spring.dependency-management") version "1.1.4"
+    // https://github.com/melix/jmh-gradle-plugin
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "name.heavycarbon"
 version = "0.0.1-SNAPSHOT"
 
+// JDK 21 for virtual threads (see "Agent.ThreadMode"). Gradle fetches the JDK if there is
+// no local one (see the "foojay" plugin in settings.gradle.kts).
+// Java 21 needs Gradle 8.5 or later (see gradle-wrapper.properties) and Spring Boot 3.2
+// or later (Spring Framework 6.1), the first versions that support it.
+// https://docs.gradle.org/current/userguide/toolchains.html
+
 java {
-    sourceCompatibility = JavaVersion.VERSION_17
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(21))
+    }
 }
 
 configurations {
@@ -44,6 +54,9 @@ dependencies {
     // https://mvnrepository.com/artifact/org.assertj/assertj-core
     testImplementation("org.assertj:assertj-core:latest.release")
     testImplementation("org.projectlombok:lombok:latest.release")
+    // https://mvnrepository.com/artifact/io.micrometer/micrometer-core
+    // Timing of the database operations (see "DbMetrics"); version managed by Spring Boot
+    testImplementation("io.micrometer:micrometer-core")
 
     // -------------
 
@@ -58,6 +71,8 @@ dependencies {
 
     // https://mvnrepository.com/artifact/com.h2database/h2
     runtimeOnly("com.h2database:h2")
+    // the tests also use H2's own API (e.g. "org.h2.api.Trigger")
+    testImplementation("com.h2database:h2")
 
     // -------------
 
@@ -72,3 +87,38 @@ tasks.withType<JavaCompile> {
 tasks.withType<Test> {
     useJUnitPlatform()
 }
+
+// Tests tagged "slow" (bulk fills of millions of rows, sweeps that run the agents many times)
+// take minutes and may fill the database of "application.yml". "./gradlew test" leaves them
+// out, "./gradlew slowTest" runs just them.
+
+tasks.test {
+    useJUnitPlatform {
+        excludeTags("slow")
+    }
+}
+
+tasks.register<Test>("slowTest") {
+    description = "Runs the tests tagged 'slow'."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("slow")
+    }
+}
+
+// JMH benchmarks are in "src/jmh/java", run them with "./gradlew jmh".
+// They use the classes under "src/test" (e.g. "Db"), hence "includeTests".
+// The "gc" profiler adds the allocation rate per operation ("gc.alloc.rate.norm").
+// The report goes to "build/results/jmh/results.txt".
+
+jmh {
+    includeTests.set(true)
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+}
@@ -1 +1,6 @@
+plugins {
+    // auto-provisioning of the JDK toolchain requested in build.gradle.kts
+    id("org.gradle.toolchains.foojay-resolver-convention") version "0.7.0"
+}
+
 rootProject.name = "h2_exercises"
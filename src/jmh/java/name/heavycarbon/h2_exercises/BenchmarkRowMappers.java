@@ -0,0 +1,122 @@
+package name.heavycarbon.h2_exercises;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.commons.IndexedRowMapperFactory.ColumnLookup;
+import name.heavycarbon.h2_exercises.transactions.db.Stuff;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// Reading "rowCount" rows into objects, with the columns looked up by name (the driver
+// resolves the name for every column of every row) or by index (resolved once per query).
+//
+// - readStuff: all the rows of the "transactions" stuff table, through Db.readAll()
+// - retrieveMsgs: all the "fresh" messages of one receiver, through Db.retrieveMsgs()
+//
+// Both tables are filled once per trial with H2's SYSTEM_RANGE table function; the
+// benchmarks only read. The score is the time to read all the rows.
+// ---
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BenchmarkRowMappers {
+
+    @Param({"ByName", "ByIndex"})
+    public ColumnLookup columnLookup;
+
+    private final static int rowCount = 1_000_000;
+
+    private final AgentId receiver = new AgentId(2);
+
+    private ShardPools pools;
+    private name.heavycarbon.h2_exercises.transactions.db.Db stuffDb;
+    private name.heavycarbon.h2_exercises.agents_and_msgs.db.Db msgDb;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        pools = new ShardPools("jmh_mappers", 1, 4);
+        final JdbcTemplate jdbcTemplate = pools.getJdbcTemplates().get(0);
+        stuffDb = new name.heavycarbon.h2_exercises.transactions.db.Db(jdbcTemplate);
+        stuffDb.rejuvenateSchema();
+        stuffDb.createStuffTable();
+        fillStuff(jdbcTemplate);
+        stuffDb.setColumnLookup(columnLookup);
+        msgDb = new name.heavycarbon.h2_exercises.agents_and_msgs.db.Db(pools.getJdbcTemplates());
+        msgDb.setupDatabase(true);
+        fillMsgs(jdbcTemplate);
+        msgDb.setColumnLookup(columnLookup);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        pools.close();
+    }
+
+    private static void fillStuff(@NotNull JdbcTemplate jdbcTemplate) {
+        final String sql = "INSERT INTO "
+                + name.heavycarbon.h2_exercises.transactions.db.Db.fqTableName_stuff
+                + " SELECT x, MOD(x, 100), CONCAT('stuff ', x) "
+                + " FROM SYSTEM_RANGE(1, ?)";
+        jdbcTemplate.update(sql, rowCount);
+    }
+
+    // ---
+    // All messages are true messages from agent 1 to "receiver", still "fresh"
+    // ---
+
+    private void fillMsgs(@NotNull JdbcTemplate jdbcTemplate) {
+        final String sql = "INSERT INTO "
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.fqTableName_message
+                + " ("
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_state + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_state_plain + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_sending_method + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_sender + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_receiver + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_is_ack + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_when_created + ","
+                + name.heavycarbon.h2_exercises.agents_and_msgs.db.Db.field_text
+                + " ) "
+                + " SELECT ?, ?, 'fillForMappers', 1, ?, FALSE, "
+                + " DATEADD(MILLISECOND, x, CAST(? AS TIMESTAMP WITH TIME ZONE)), "
+                + " CONCAT('bulk ', x) "
+                + " FROM SYSTEM_RANGE(1, ?)";
+        jdbcTemplate.update(sql, ps -> {
+            int index = 1;
+            ps.setInt(index++, MsgState.fresh.getRaw());
+            ps.setString(index++, MsgState.fresh.toString());
+            ps.setInt(index++, receiver.getRaw());
+            ps.setObject(index++, Instant.parse("2023-08-01T00:00:00Z"));
+            ps.setInt(index, rowCount);
+        });
+    }
+
+    @Benchmark
+    public List<Stuff> readStuff() {
+        return stuffDb.readAll();
+    }
+
+    @Benchmark
+    public List<MsgBase> retrieveMsgs() {
+        return msgDb.retrieveMsgs(receiver, MsgState.fresh);
+    }
+
+}
@@ -0,0 +1,66 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// The three ways of binding a "java.time.Instant" (see Db.InstantBinding), measured through
+// Db.sendMsgWithJdbcTemplateReturningId(), the send method that uses them.
+// Note that "AsTimestampWithCalendar" stores a wrong value; it is measured all the same.
+//
+// Same setup as BenchmarkSendMethods.
+// ---
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BenchmarkInstantBinding {
+
+    @Param({"AsTimestampWithCalendar", "AsIsoString", "AsObject"})
+    public Db.InstantBinding instantBinding;
+
+    private final AgentId sender = new AgentId(1);
+    private final AgentId receiver = new AgentId(2);
+    private final String text = "Desert Tornado 42";
+
+    private ShardPools pools;
+    private Db db;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        pools = new ShardPools("jmh_instant", 1, 4);
+        db = new Db(pools.getJdbcTemplates());
+        db.setInstantBinding(instantBinding);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        db.setupDatabase(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        pools.close();
+    }
+
+    @Benchmark
+    public MsgId sendMsgWithJdbcTemplateReturningId() {
+        return db.sendMsgWithJdbcTemplateReturningId(Instant.now(), sender, receiver, text);
+    }
+
+}
@@ -0,0 +1,110 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.InMemoryMessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.MessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.MvStoreMessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// One round of the agent protocol per invocation, over each MessageStore: A sends "batchSize"
+// true messages to B, B claims and acks them, A claims the acks and marks them "seen".
+// That is the same sequence of calls on both stores, so the difference is the cost of SQL,
+// JDBC and Spring on top of H2's storage engine. The score is per message sent.
+//
+// "Jdbc" is Db over an in-memory H2 database, "MVStore" is an in-memory MvStoreMessageStore,
+// "InMemory" is InMemoryMessageStore, the upper bound.
+// The store is recreated per iteration, so that it does not grow without bounds.
+// ---
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BenchmarkMessageStores {
+
+    public enum StoreKind {Jdbc, MVStore, InMemory}
+
+    @Param({"Jdbc", "MVStore", "InMemory"})
+    public StoreKind storeKind;
+
+    private final static int batchSize = 10;
+
+    private final AgentId a = new AgentId(1);
+    private final AgentId b = new AgentId(2);
+    private final String text = "Desert Tornado 42";
+
+    private ShardPools pools;
+    private MvStoreMessageStore mvStore;
+    private MessageStore store;
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        switch (storeKind) {
+            case Jdbc -> {
+                pools = new ShardPools("jmh_stores", 1, 4);
+                final Db db = new Db(pools.getJdbcTemplates());
+                db.setupDatabase(true);
+                store = db;
+            }
+            case MVStore -> {
+                mvStore = new MvStoreMessageStore(Optional.empty());
+                store = mvStore;
+            }
+            case InMemory -> store = new InMemoryMessageStore();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        if (pools != null) {
+            pools.close();
+            pools = null;
+        }
+        if (mvStore != null) {
+            mvStore.close();
+            mvStore = null;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public List<MsgId> sendClaimAck() {
+        final Instant now = Instant.now();
+        final List<MsgToSend> msgs = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            msgs.add(new MsgToSend(now, a, b, text));
+        }
+        store.sendMsgs(msgs);
+        final List<TrueMsg> trueMsgs = new ArrayList<>(batchSize);
+        for (MsgBase msg : store.claimMsgs(b, batchSize)) {
+            trueMsgs.add((TrueMsg) msg);
+        }
+        store.ackClaimedMsgs(b, trueMsgs, now);
+        final List<MsgId> ackMsgIds = store.claimMsgs(a, batchSize).stream().map(MsgBase::getId).toList();
+        store.markClaimedMsgsAsSeen(ackMsgIds, now, a);
+        return ackMsgIds;
+    }
+
+}
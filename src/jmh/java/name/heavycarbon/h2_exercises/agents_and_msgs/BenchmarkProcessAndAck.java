@@ -0,0 +1,92 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// Processing a batch of true messages on the receiver's side: mark them "seen" and ack them.
+//
+// - ClientSide: what AgentRunnable does, claimMsgs() then ackClaimedMsgs(), i.e. three
+//   JDBC calls (claim, mark "seen", insert the acks), each committed on its own
+// - InEngine: Db.processAndAck(), a single call to a Java function running inside H2,
+//   committed once
+//
+// Per invocation, A sends "batchSize" true messages to B (the same for both), then B
+// processes them. The acks stay "fresh" in A's inbox, which does not bother B's queries.
+// The score is per message processed. The database is recreated per iteration.
+// ---
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BenchmarkProcessAndAck {
+
+    public enum Processing {ClientSide, InEngine}
+
+    @Param({"ClientSide", "InEngine"})
+    public Processing processing;
+
+    private final static int batchSize = 10;
+
+    private final AgentId a = new AgentId(1);
+    private final AgentId b = new AgentId(2);
+    private final String text = "Golden Cobra 17";
+
+    private ShardPools pools;
+    private Db db;
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        pools = new ShardPools("jmh_process", 1, 4);
+        db = new Db(pools.getJdbcTemplates());
+        db.setupDatabase(true);
+        db.installProcessAndAck();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        pools.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public List<?> sendAndProcess() {
+        final Instant now = Instant.now();
+        final List<MsgToSend> msgs = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            msgs.add(new MsgToSend(now, a, b, text));
+        }
+        db.sendMsgs(msgs);
+        return switch (processing) {
+            case ClientSide -> {
+                final List<TrueMsg> trueMsgs = new ArrayList<>(batchSize);
+                for (MsgBase msg : db.claimMsgs(b, batchSize)) {
+                    trueMsgs.add((TrueMsg) msg);
+                }
+                yield db.ackClaimedMsgs(b, trueMsgs, now);
+            }
+            case InEngine -> db.processAndAck(b, batchSize, now);
+        };
+    }
+
+}
@@ -0,0 +1,80 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// The four ways Db has to insert a single message, against an in-memory H2 database.
+//
+// The database is not managed by Spring: it is a single "shard" of a ShardPools, and the
+// connections are in auto-commit mode, so each insert is one commit.
+// The message table is recreated before each iteration, so that it does not grow without
+// bound over the run.
+//
+// Run with "./gradlew jmh". The "gc" profiler configured in build.gradle.kts gives the
+// allocation per insert.
+// ---
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BenchmarkSendMethods {
+
+    private final AgentId sender = new AgentId(1);
+    private final AgentId receiver = new AgentId(2);
+    private final String text = "Desert Tornado 42";
+
+    private ShardPools pools;
+    private Db db;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        pools = new ShardPools("jmh_send", 1, 4);
+        db = new Db(pools.getJdbcTemplates());
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        db.setupDatabase(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        pools.close();
+    }
+
+    @Benchmark
+    public void sendMsgWithSimpleJdbc() {
+        db.sendMsgWithSimpleJdbc(Instant.now(), sender, receiver, text);
+    }
+
+    @Benchmark
+    public MsgId sendMsgWithSimpleJdbcReturningId() {
+        return db.sendMsgWithSimpleJdbcReturningId(Instant.now(), sender, receiver, text);
+    }
+
+    @Benchmark
+    public void sendMsgWithJdbcTemplate() {
+        db.sendMsgWithJdbcTemplate(Instant.now(), sender, receiver, text);
+    }
+
+    @Benchmark
+    public MsgId sendMsgWithJdbcTemplateReturningId() {
+        return db.sendMsgWithJdbcTemplateReturningId(Instant.now(), sender, receiver, text);
+    }
+
+}
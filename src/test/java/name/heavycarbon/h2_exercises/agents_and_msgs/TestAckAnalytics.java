@@ -0,0 +1,150 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+// ---
+// Run the analytics of Db (ack latencies, throughput per bucket, backlog ages) over a
+// message table filled with millions of synthetic messages, and log how long they take.
+//
+// Message "x" (x = 1, 2, ...) is created "x" ms after "base". Odd ones are true messages,
+// acked MOD(x, 1000) ms after their creation; even ones are ack messages. The last
+// "pendingCount" messages are still "fresh", spread over 10 receivers.
+// The figures are known, so they are checked too.
+//
+// Filling millions of rows takes a while, so this is tagged "slow" and only run by
+// "./gradlew slowTest" (see build.gradle.kts).
+// ---
+
+@Slf4j
+@AutoConfigureJdbc
+@SpringBootTest(classes = {TestAckAnalytics.class, Db.class})
+public class TestAckAnalytics {
+
+    // ===
+    // How many messages to fill in, in chunks of "chunkSize" (one statement each)
+    // ===
+
+    private final int msgCount = 2_000_000;
+    private final int chunkSize = 200_000;
+
+    // ===
+    // How many of the last messages are left "fresh"
+    // ===
+
+    private final int pendingCount = 1_000;
+
+    private final int receiverCount = 10;
+
+    private final Instant base = Instant.parse("2023-08-01T00:00:00Z");
+
+    @Autowired
+    private Db db;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // ---
+    // Bulk-insert messages "from" to "to" using H2's SYSTEM_RANGE table function.
+    // ---
+
+    private void fill(long from, long to) {
+        final String sql = "INSERT INTO "
+                + Db.fqTableName_message
+                + " ("
+                + Db.field_state + ","
+                + Db.field_state_plain + ","
+                + Db.field_sending_method + ","
+                + Db.field_sender + ","
+                + Db.field_receiver + ","
+                + Db.field_is_ack + ","
+                + Db.field_when_created + ","
+                + Db.field_when_acked + ","
+                + Db.field_text
+                + " ) "
+                + " SELECT "
+                + " CASE WHEN x > ? THEN ? ELSE ? END, "
+                + " CASE WHEN x > ? THEN ? ELSE ? END, "
+                + " 'fillForAnalytics', "
+                + " MOD(x + 1, ?) + 1, "
+                + " MOD(x, ?) + 1, "
+                + " MOD(x, 2) = 0, "
+                + " DATEADD(MILLISECOND, x, CAST(? AS TIMESTAMP WITH TIME ZONE)), "
+                + " CASE WHEN x > ? THEN NULL ELSE DATEADD(MILLISECOND, x + MOD(x, 1000), CAST(? AS TIMESTAMP WITH TIME ZONE)) END, "
+                + " CONCAT('bulk ', x) "
+                + " FROM SYSTEM_RANGE(?, ?)";
+        final int firstPending = msgCount - pendingCount;
+        jdbcTemplate.update(sql, ps -> {
+            int index = 1;
+            ps.setInt(index++, firstPending);
+            ps.setInt(index++, MsgState.fresh.getRaw());
+            ps.setInt(index++, MsgState.seen.getRaw());
+            ps.setInt(index++, firstPending);
+            ps.setString(index++, MsgState.fresh.toString());
+            ps.setString(index++, MsgState.seen.toString());
+            ps.setInt(index++, receiverCount);
+            ps.setInt(index++, receiverCount);
+            ps.setObject(index++, base);
+            ps.setInt(index++, firstPending);
+            ps.setObject(index++, base);
+            ps.setLong(index++, from);
+            ps.setLong(index, to);
+        });
+    }
+
+    // ---
+    // Testing, or rather, running!
+    // ---
+
+    @Test
+    @Tag("slow")
+    void runAnalytics() {
+        db.setupDatabase(true);
+        final long startFill = System.nanoTime();
+        for (long from = 1; from <= msgCount; from += chunkSize) {
+            fill(from, Math.min(from + chunkSize - 1, msgCount));
+        }
+        log.info("Filled {} messages in {} ms", msgCount, (System.nanoTime() - startFill) / 1_000_000);
+        final Instant from = base;
+        final Instant to = base.plusMillis(msgCount + 1);
+        {
+            final long start = System.nanoTime();
+            final Db.AckLatencies latencies = db.ackLatencies(from, to, Duration.ofMillis(1), List.of(0.5, 0.9, 0.99));
+            log.info("Ack latencies in {} ms: {}", (System.nanoTime() - start) / 1_000_000, latencies);
+            Assertions.assertThat(latencies.count()).isEqualTo((msgCount - pendingCount) / 2);
+            Assertions.assertThat(latencies.percentiles().get(0.5).toMillis()).isBetween(490L, 510L);
+            Assertions.assertThat(latencies.percentiles().get(0.99).toMillis()).isBetween(980L, 1000L);
+        }
+        {
+            final long start = System.nanoTime();
+            final List<Db.ThroughputBucket> buckets = db.throughputPerBucket(from, to, Duration.ofMinutes(1));
+            log.info("Throughput per minute in {} ms: {} buckets", (System.nanoTime() - start) / 1_000_000, buckets.size());
+            buckets.forEach(bucket -> log.info("{}", bucket));
+            Assertions.assertThat(buckets.stream().mapToLong(Db.ThroughputBucket::trueMsgs).sum()).isEqualTo(msgCount / 2);
+            Assertions.assertThat(buckets.stream().mapToLong(Db.ThroughputBucket::ackMsgs).sum()).isEqualTo(msgCount / 2);
+        }
+        {
+            final long start = System.nanoTime();
+            final List<Db.BacklogAge> ages = db.backlogAges(to);
+            log.info("Backlog ages in {} ms", (System.nanoTime() - start) / 1_000_000);
+            ages.forEach(age -> log.info("{}", age));
+            Assertions.assertThat(ages).hasSize(receiverCount);
+            Assertions.assertThat(ages).allMatch(age -> age.pending() == pendingCount / receiverCount);
+        }
+        // the backlog counters know nothing about the filled messages
+        db.reconcileBacklogCounters(true);
+    }
+
+}
@@ -3,19 +3,50 @@ package name.heavycarbon.h2_exercises.agents_and_msgs;
 import lombok.extern.slf4j.Slf4j;
 import name.heavycarbon.h2_exercises.agents_and_msgs.agent.Agent;
 import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentRunnable;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.ArchiverRunnable;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.PayloadPool;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.BacklogCounters;
 import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.InMemoryMessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.MessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.MvStoreMessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.OpTrace;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.PoolProfile;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.SpringPoolConfig;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.TransactionalDb;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.WriteBehindBuffer;
 import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import ch.qos.logback.classic.Level;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
 import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAmount;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.stream.IntStream;
 
 // ---
@@ -23,8 +54,18 @@ import java.util.stream.IntStream;
 // messages to each other through an H2 table, poll for new messages, and
 // acknowledge the messages.
 //
-// he executable part is packaged as a JUnit5 test but it doesn't check anything,
-// it just runs a fixed number of agents for a fixed number of seconds.
+// The executable part is packaged as JUnit5 tests, which run a fixed number of agents
+// for a fixed number of seconds. What they check is the bookkeeping once the agents have
+// stopped, not the agents' speed:
+//
+// - runAgents() and runAgentsWithWriteBehind(): the backlog counters agree with the
+//   database; with write-behind, also that nothing was lost and no message is left "claimed"
+// - recordAndReplayTrace(): every replay sends as many messages as the recording did
+//
+// The others only log figures: messages per second over shards, pool sizes and message
+// stores, the heap of many virtual agents, and, in runBenchmark(), throughput, ack latency
+// and database operations per message, to compare across changes. The long-running ones
+// are tagged "slow" and only run by "./gradlew slowTest" (see build.gradle.kts).
 //
 // There are two type of messages:
 //
@@ -43,7 +84,7 @@ import java.util.stream.IntStream;
 
 @Slf4j
 @AutoConfigureJdbc
-@SpringBootTest(classes = {TestAgentsExchangingMsgs.class, Db.class})
+@SpringBootTest(classes = {TestAgentsExchangingMsgs.class, Db.class, TransactionalDb.class, SpringPoolConfig.class})
 public class TestAgentsExchangingMsgs {
 
     // ===
@@ -58,6 +99,106 @@ public class TestAgentsExchangingMsgs {
 
     private final Duration runTime = Duration.of(5, ChronoUnit.SECONDS);
 
+    // ===
+    // How agents find out about new mail. "Push" needs H2 to run embedded in this JVM,
+    // i.e. a "jdbc:h2:mem:" or "jdbc:h2:file:" URL in application.yml. It does not work
+    // with the "jdbc:h2:tcp:" URL configured there by default.
+    // ===
+
+    private final AgentRunnable.WakeupMode wakeupMode = AgentRunnable.WakeupMode.Polling;
+
+    // ===
+    // Whether and how to run the archiver next to the agents in runAgents(). Messages acked
+    // more than 1s ago are moved to the archive table; archived messages acked more than 3s
+    // ago are deleted. Set to Optional.empty() to keep all the messages in the message table.
+    // ===
+
+    private final Optional<ArchiverRunnable.Config> archiving = Optional.of(
+            new ArchiverRunnable.Config(Duration.ofSeconds(1), Optional.of(Duration.ofSeconds(3)), 500, Duration.ofMillis(200)));
+
+    // ===
+    // The write-behind buffer used by runAgentsWithWriteBehind(): room for 4096 items,
+    // written out every 200 items or every 20ms.
+    // ===
+
+    private final WriteBehindBuffer.Config writeBehindConfig = new WriteBehindBuffer.Config(4096, 200, Duration.ofMillis(20));
+
+    // ===
+    // Shard counts for runAgentsOverShards(). Each shard is an in-memory H2 database with its
+    // own connection pool (see ShardPools), so that run does not use application.yml at all.
+    // The agents spend most of their time sleeping, so it takes many of them to make the
+    // database the bottleneck.
+    // ===
+
+    private final List<Integer> shardCounts = List.of(1, 2, 4, 8);
+    private final int poolSizePerShard = 10;
+    private final int shardedAgentCount = 100;
+
+    // ===
+    // What kind of thread animates each agent, see Agent.ThreadMode
+    // ===
+
+    private final Agent.ThreadMode threadMode = Agent.ThreadMode.Platform;
+
+    // ===
+    // Agent counts for runManyVirtualAgents(), which always uses virtual threads and
+    // runs over in-memory shards, like runAgentsOverShards().
+    // ===
+
+    private final List<Integer> scalingAgentCounts = List.of(1_000, 10_000, 20_000);
+    private final int scalingShardCount = 4;
+    private final int scalingPoolSizePerShard = 16;
+
+    // ===
+    // Pool sizes for runAgentsOverPoolSizes(). The agents run over a single in-memory database
+    // with its own pool (like runAgentsOverShards() with 1 shard), and only the pool size
+    // changes from run to run. The other pool settings come from "sweepPoolProfile".
+    // runAgentsOverSpringPoolSizes() uses the same sizes on the Spring-configured pool.
+    // ===
+
+    private final List<Integer> sweepPoolSizes = List.of(2, 4, 8, 16, 32, 64);
+    private final PoolProfile sweepPoolProfile = PoolProfile.standard;
+    private final int sweepAgentCount = 100;
+
+    // ===
+    // Agent count for runAgentsOverMessageStores(), which runs the same agents over the message
+    // table (in-memory H2, through JDBC), over an in-memory MVStore used directly, and over
+    // InMemoryMessageStore.
+    // ===
+
+    private final int storeAgentCount = 100;
+
+    // ===
+    // The workload of the agents in runAgentsOverMessageStores() and recordAndReplayTrace():
+    // texts of 1 to Db.maxTextLength chars, mostly short (exponential, mean 40), from a fixed seed.
+    // ===
+
+    private final AgentRunnable.Workload storeWorkload = new AgentRunnable.Workload(0.333,
+            PayloadPool.build(PayloadPool.SizeDistribution.exponential(40, Db.maxTextLength), AgentRunnable.Workload.defaultSeed),
+            AgentRunnable.Workload.defaultSeed);
+
+    // ===
+    // Whether to log the Db metrics (timings, rows, errors per operation) at the end of a run.
+    // See DbMetrics.
+    // ===
+
+    private final boolean dumpMetrics = true;
+
+    // ===
+    // The runs of runBenchmark(). Each run starts on an empty database and runs its agents
+    // for "warmUp", then for "runTime". Only what happens during "runTime" is reported.
+    // See AgentRunnable.Workload for "sendProbability" and "payloadChars".
+    // ===
+
+    private record BenchmarkRun(int agentCount, @NotNull Duration warmUp, @NotNull Duration runTime, double sendProbability, int payloadChars) {
+    }
+
+    private final List<BenchmarkRun> benchmarkRuns = List.of(
+            new BenchmarkRun(10, Duration.ofSeconds(2), Duration.ofSeconds(5), 0.333, 0),
+            new BenchmarkRun(10, Duration.ofSeconds(2), Duration.ofSeconds(5), 0.666, 0),
+            new BenchmarkRun(50, Duration.ofSeconds(2), Duration.ofSeconds(5), 0.333, 0),
+            new BenchmarkRun(10, Duration.ofSeconds(2), Duration.ofSeconds(5), 0.333, 1_000));
+
     // This class cannot be autowired by constructor (it would need some additional glue
     // code for this). We just have a "Db" field (with an instance that carries a
     // JdbcTemplate and all the database code we need) that is marked as "autowired".
@@ -65,36 +206,97 @@ public class TestAgentsExchangingMsgs {
     @Autowired
     private Db db;
 
+    // Holds the methods marked "@Transactional". Spring slaps a transactional proxy around it.
+
+    @Autowired
+    private TransactionalDb txDb;
+
+    // The Spring-configured DataSource, a HikariCP pool set up by SpringPoolConfig
+
+    @Autowired
+    private DataSource dataSource;
+
     // ---
 
-    private static Map<AgentId, Agent> buildAllAgents(@NotNull final Db db, final int agentCount) {
+    private static Map<AgentId, Agent> buildAllAgents(@NotNull final Db db, @NotNull final TransactionalDb txDb, final int agentCount, @NotNull final AgentRunnable.WakeupMode wakeupMode, @NotNull final Agent.ThreadMode threadMode, @NotNull final Optional<WriteBehindBuffer> writeBehind, @NotNull final AgentRunnable.Workload workload) {
+        return buildAllAgents(agentCount, threadMode, (agentId, others) -> new AgentRunnable(db, txDb, agentId, others, wakeupMode, writeBehind, workload));
+    }
+
+    // ---
+    // Agents that only use the MessageStore interface of "store", see AgentRunnable
+    // ---
+
+    private static Map<AgentId, Agent> buildAllAgents(@NotNull final MessageStore store, final int agentCount, @NotNull final Agent.ThreadMode threadMode, @NotNull final AgentRunnable.Workload workload) {
+        return buildAllAgents(agentCount, threadMode, (agentId, others) -> new AgentRunnable(store, agentId, others, workload));
+    }
+
+    private static Map<AgentId, Agent> buildAllAgents(final int agentCount, @NotNull final Agent.ThreadMode threadMode, @NotNull final BiFunction<AgentId, List<AgentId>, AgentRunnable> runnableFactory) {
         if (agentCount < 2) {
             throw new IllegalArgumentException("Need at least 2 agents");
         }
         final List<AgentId> agentIds = new ArrayList<>(agentCount);
         IntStream.rangeClosed(1, agentCount).forEach(i -> agentIds.add(new AgentId(i)));
         Map<AgentId, Agent> res = new HashMap<>();
-        agentIds.forEach(agentId -> {
-            var others = new ArrayList<>(agentIds);
-            others.remove(agentId);
-            var runnable = new AgentRunnable(db, agentId, others);
-            var thread = new Thread(runnable, agentId.toString());
-            thread.setDaemon(true);
-            res.put(agentId, new Agent(agentId, thread, runnable));
-        });
+        for (int index = 0; index < agentCount; index++) {
+            final AgentId agentId = agentIds.get(index);
+            var runnable = runnableFactory.apply(agentId, allBut(agentIds, index));
+            res.put(agentId, Agent.build(agentId, runnable, threadMode));
+        }
         return res;
     }
 
+    // ---
+    // A view of "list" without the element at "index". A copy per agent would take
+    // memory quadratic in the number of agents, which hurts with tens of thousands of agents.
+    // ---
+
+    private static List<AgentId> allBut(@NotNull final List<AgentId> list, final int index) {
+        return new AbstractList<>() {
+            @Override
+            public AgentId get(int i) {
+                return list.get(i < index ? i : i + 1);
+            }
+
+            @Override
+            public int size() {
+                return list.size() - 1;
+            }
+        };
+    }
+
     private static boolean isAllThreadsAlive(@NotNull Collection<Agent> agents) {
         return agents.stream().allMatch(agent -> agent.thread().isAlive());
     }
 
-    private void runMsgExchangingAgents(final int agentCount, final TemporalAmount runTime) {
-        Map<AgentId, Agent> agentMap = Collections.unmodifiableMap(buildAllAgents(db, agentCount));
+    // ---
+    // What a run of the agents gives back:
+    // - the largest heap usage, in bytes, seen while the agents were running
+    // - the measurement window, which starts after the warm-up and ends once the agents have stopped
+    // - the number of Db operations during the measurement window, as counted by DbMetrics
+    // - the number of items the write-behind buffer could not write (0 without a buffer)
+    // ---
+
+    private record RunResult(long maxHeapUsed, @NotNull Instant measuredFrom, @NotNull Instant measuredTo, long dbOps, long writeBehindLost) {
+    }
+
+    private RunResult runMsgExchangingAgents(@NotNull final Db db, @NotNull final TransactionalDb txDb, final int agentCount, @NotNull final Duration warmUp, final TemporalAmount runTime, @NotNull final Optional<ArchiverRunnable.Config> archiving, @NotNull final Agent.ThreadMode threadMode, @NotNull final Optional<WriteBehindBuffer.Config> writeBehindConfig, @NotNull final AgentRunnable.Workload workload) {
+        final Optional<WriteBehindBuffer> writeBehind = writeBehindConfig.map(config -> new WriteBehindBuffer(txDb, config));
+        // the metrics dumped at the end are those of this run only
+        db.getMetrics().clear();
+        writeBehind.ifPresent(WriteBehindBuffer::start);
+        Map<AgentId, Agent> agentMap = Collections.unmodifiableMap(buildAllAgents(db, txDb, agentCount, wakeupMode, threadMode, writeBehind, workload));
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long maxHeapUsed = memory.getHeapMemoryUsage().getUsed();
+        final Optional<ArchiverRunnable> archiver = archiving.map(config -> new ArchiverRunnable(db, config));
+        final Optional<Thread> archiverThread = archiver.map(runnable -> new Thread(runnable, "archiver"));
+        archiverThread.ifPresent(thread -> thread.setDaemon(true));
         // starting!
         agentMap.values().forEach(agent -> agent.thread().start());
+        archiverThread.ifPresent(Thread::start);
+        final Instant measuredFrom = Instant.now().plus(warmUp);
+        long dbOpsBefore = warmUp.isZero() ? db.getMetrics().countOperations() : -1;
         {
-            final Instant stopWhen = Instant.now().plus(runTime);
+            final Instant stopWhen = measuredFrom.plus(runTime);
             boolean interrupted = false;
             // none of the threads is supposed to stop by itself so test isAllThreadsAlive()
             while (Instant.now().isBefore(stopWhen) && isAllThreadsAlive(agentMap.values()) && !interrupted) {
@@ -105,10 +307,70 @@ public class TestAgentsExchangingMsgs {
                     // did the user interrupt us? anyway, get out
                     interrupted = true;
                 }
+                maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed());
+                if (dbOpsBefore < 0 && !Instant.now().isBefore(measuredFrom)) {
+                    dbOpsBefore = db.getMetrics().countOperations();
+                }
+            }
+        }
+        windDownAllThreads(agentMap);
+        joinAllThreads(agentMap.values());
+        final Instant measuredTo = Instant.now();
+        // the agents have stopped, write out what they left in the buffer
+        writeBehind.ifPresent(WriteBehindBuffer::windDown);
+        final long dbOps = db.getMetrics().countOperations() - Math.max(dbOpsBefore, 0);
+        // the archiver goes last, so that it does not miss the last acks
+        if (archiver.isPresent()) {
+            archiver.get().windDown();
+            archiverThread.get().interrupt();
+            try {
+                archiverThread.get().join();
+            } catch (InterruptedException ex) {
+                // leave it be
             }
+            log.info("Messages left in the message table: {}, in the archive table: {}", db.countAllMsgs(), db.countArchivedMsgs());
+        }
+        if (dumpMetrics) {
+            db.getMetrics().dump().forEach(log::info);
         }
+        return new RunResult(maxHeapUsed, measuredFrom, measuredTo, dbOps, writeBehind.map(WriteBehindBuffer::getLostCount).orElse(0L));
+    }
+
+    // ---
+    // Run agents that only use the MessageStore interface of "store" for "warmUp", then for
+    // "runTime". Returns the messages (true and ack) stored per second during "runTime".
+    // ---
+
+    private double runAgentsOverStore(@NotNull final MessageStore store, final int agentCount, @NotNull final Duration warmUp, @NotNull final Duration runTime) {
+        final Map<AgentId, Agent> agentMap = buildAllAgents(store, agentCount, threadMode, storeWorkload);
+        agentMap.values().forEach(agent -> agent.thread().start());
+        boolean interrupted = sleepWhileAllAlive(agentMap.values(), warmUp);
+        final long countBefore = store.countAllMsgs();
+        final long start = System.nanoTime();
+        if (!interrupted) {
+            sleepWhileAllAlive(agentMap.values(), runTime);
+        }
+        final long countAfter = store.countAllMsgs();
+        final long elapsed = System.nanoTime() - start;
         windDownAllThreads(agentMap);
         joinAllThreads(agentMap.values());
+        return (countAfter - countBefore) / (elapsed / 1_000_000_000.0);
+    }
+
+    // ---
+    // Returns whether we were interrupted
+    // ---
+
+    private static boolean sleepWhileAllAlive(@NotNull Collection<Agent> agents, @NotNull Duration duration) {
+        final Instant stopWhen = Instant.now().plus(duration);
+        while (Instant.now().isBefore(stopWhen) && isAllThreadsAlive(agents)) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static void windDownAllThreads(@NotNull Map<AgentId, Agent> agentMap) {
@@ -142,8 +404,319 @@ public class TestAgentsExchangingMsgs {
     @Test
     void runAgents() {
         db.setupDatabase(true);
-        runMsgExchangingAgents(agentCount, runTime);
+        if (wakeupMode == AgentRunnable.WakeupMode.Push) {
+            db.installInboxTrigger();
+        }
+        runMsgExchangingAgents(db, txDb, agentCount, Duration.ZERO, runTime, archiving, threadMode, Optional.empty(), AgentRunnable.Workload.standard());
+        // all the agents have stopped, so the backlog counters must agree with the database
+        final List<BacklogCounters.Mismatch> mismatches = db.reconcileBacklogCounters(false);
+        mismatches.forEach(mismatch -> log.warn("Backlog counter mismatch: {}", mismatch));
+        Assertions.assertThat(mismatches).isEmpty();
     }
 
-}
+    // ---
+    // Same as runAgents(), but the agents send and ack through a write-behind buffer,
+    // which writes in batches with one commit each. Once the buffer has been written out,
+    // nothing may have been lost, the backlog counters must agree with the database, and no
+    // message may be left "claimed".
+    // ---
+
+    @Test
+    void runAgentsWithWriteBehind() {
+        db.setupDatabase(true);
+        final RunResult result = runMsgExchangingAgents(db, txDb, agentCount, Duration.ZERO, runTime, Optional.empty(), threadMode, Optional.of(writeBehindConfig), AgentRunnable.Workload.standard());
+        Assertions.assertThat(result.writeBehindLost()).isZero();
+        final List<BacklogCounters.Mismatch> mismatches = db.reconcileBacklogCounters(false);
+        mismatches.forEach(mismatch -> log.warn("Backlog counter mismatch: {}", mismatch));
+        Assertions.assertThat(mismatches).isEmpty();
+        for (int i = 1; i <= agentCount; i++) {
+            Assertions.assertThat(db.countMsgs(new AgentId(i), MsgState.claimed)).isZero();
+        }
+    }
+
+    // ---
+    // Run the agents over 1, 2, 4, ... shards and log how many messages (true messages and
+    // ack messages) went through per second. The TransactionalDb is built by hand, so there is
+    // no Spring proxy and "ackBatch()" runs without a transaction, one commit per statement.
+    // That is the same for all shard counts, so the numbers are comparable.
+    // There is no archiver, so that all the messages are still there to be counted at the end.
+    // ---
+
+    @Test
+    void runAgentsOverShards() {
+        final Map<Integer, Double> msgsPerSec = new LinkedHashMap<>();
+        for (int shardCount : shardCounts) {
+            try (ShardPools pools = new ShardPools("agents_shard", shardCount, poolSizePerShard)) {
+                final Db shardedDb = new Db(pools.getJdbcTemplates());
+                shardedDb.setupDatabase(true);
+                if (wakeupMode == AgentRunnable.WakeupMode.Push) {
+                    shardedDb.installInboxTrigger();
+                }
+                final long start = System.nanoTime();
+                runMsgExchangingAgents(shardedDb, new TransactionalDb(shardedDb), shardedAgentCount, Duration.ZERO, runTime, Optional.empty(), threadMode, Optional.empty(), AgentRunnable.Workload.standard());
+                final double elapsed_s = (System.nanoTime() - start) / 1_000_000_000.0;
+                msgsPerSec.put(shardCount, shardedDb.countAllMsgs() / elapsed_s);
+            }
+        }
+        msgsPerSec.forEach((shardCount, rate) -> log.info(String.format("%2d shard(s): %,10.1f msgs/s", shardCount, rate)));
+    }
+
+    // ---
+    // Run thousands of agents on virtual threads and log the message throughput and the heap.
+    // The agents' own logging is switched down to WARN, as logging a line per message from
+    // 10'000 agents would measure the console rather than the database.
+    // The heap figure includes garbage not yet collected, so it is an upper bound.
+    // ---
+
+    @Test
+    @Tag("slow")
+    void runManyVirtualAgents() {
+        withQuietAgents(() -> {
+            final List<String> results = new ArrayList<>();
+            for (int count : scalingAgentCounts) {
+                try (ShardPools pools = new ShardPools("agents_scaling", scalingShardCount, scalingPoolSizePerShard)) {
+                    final Db shardedDb = new Db(pools.getJdbcTemplates());
+                    shardedDb.setupDatabase(true);
+                    System.gc();
+                    final long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                    final long start = System.nanoTime();
+                    final long maxHeapUsed = runMsgExchangingAgents(shardedDb, new TransactionalDb(shardedDb), count, Duration.ZERO, runTime, Optional.empty(), Agent.ThreadMode.Virtual, Optional.empty(), AgentRunnable.Workload.standard()).maxHeapUsed();
+                    final double elapsed_s = (System.nanoTime() - start) / 1_000_000_000.0;
+                    final double msgsPerSec = shardedDb.countAllMsgs() / elapsed_s;
+                    final double mibPeak = maxHeapUsed / (1024.0 * 1024.0);
+                    final double kibPerAgent = (maxHeapUsed - heapBefore) / 1024.0 / count;
+                    results.add(String.format("%,7d virtual agents: %,10.1f msgs/s, heap peak %,8.1f MiB, %,8.1f KiB per agent", count, msgsPerSec, mibPeak, kibPerAgent));
+                }
+            }
+            results.forEach(log::info);
+        });
+    }
+
+    // ---
+    // One run of a pool-size sweep: the agents run over "pooledDb", whose pool has "poolSize"
+    // connections and exports its meters to "registry". Puts the message throughput into
+    // "msgsPerSec" and returns the line to log.
+    // The connection waits are the differences of HikariCP's "acquire" timer and "timeout"
+    // counter over the run (including the 1 s warm-up), so that meters which live on from run
+    // to run (those of the Spring pool) only count this run. The max is Micrometer's, i.e. the
+    // largest wait over the last couple of minutes.
+    // ---
+
+    private String runAgentsOnPool(@NotNull Db pooledDb, @NotNull TransactionalDb pooledTxDb, @NotNull MeterRegistry registry, int poolSize, @NotNull Map<Integer, Double> msgsPerSec) {
+        final Timer acquireBefore = registry.find("hikaricp.connections.acquire").timer();
+        final Counter timeoutsBefore = registry.find("hikaricp.connections.timeout").counter();
+        final long acquireCountBefore = (acquireBefore == null) ? 0 : acquireBefore.count();
+        final double acquireTotalBefore_us = (acquireBefore == null) ? 0.0 : acquireBefore.totalTime(TimeUnit.MICROSECONDS);
+        final double timeoutCountBefore = (timeoutsBefore == null) ? 0.0 : timeoutsBefore.count();
+        final RunResult result = runMsgExchangingAgents(pooledDb, pooledTxDb, sweepAgentCount, Duration.ofSeconds(1), runTime, Optional.empty(), threadMode, Optional.empty(), AgentRunnable.Workload.standard());
+        final double window_s = Duration.between(result.measuredFrom(), result.measuredTo()).toNanos() / 1_000_000_000.0;
+        final long msgCount = pooledDb.throughputPerBucket(result.measuredFrom(), result.measuredTo(), Duration.ofSeconds(1)).stream()
+                .mapToLong(bucket -> bucket.trueMsgs() + bucket.ackMsgs())
+                .sum();
+        final double rate = msgCount / window_s;
+        msgsPerSec.put(poolSize, rate);
+        final Timer acquire = registry.find("hikaricp.connections.acquire").timer();
+        final Counter timeouts = registry.find("hikaricp.connections.timeout").counter();
+        final long acquireCount = (acquire == null) ? 0 : acquire.count() - acquireCountBefore;
+        final double acquireTotal_us = (acquire == null) ? 0.0 : acquire.totalTime(TimeUnit.MICROSECONDS) - acquireTotalBefore_us;
+        return String.format("pool size %2d: %,10.1f msgs/s, connection wait mean %,10.1f us, max %,10.1f us, %,.0f timeouts",
+                poolSize,
+                rate,
+                (acquireCount == 0) ? 0.0 : acquireTotal_us / acquireCount,
+                (acquire == null) ? 0.0 : acquire.max(TimeUnit.MICROSECONDS),
+                (timeouts == null) ? 0.0 : timeouts.count() - timeoutCountBefore);
+    }
 
+    // ---
+    // The "knee point" is the smallest pool size that gets within 10% of the best throughput:
+    // beyond it, more connections hardly help.
+    // ---
+
+    private static void logKneePoint(@NotNull Map<Integer, Double> msgsPerSec) {
+        final double best = msgsPerSec.values().stream().mapToDouble(Double::doubleValue).max().orElse(0);
+        msgsPerSec.entrySet().stream()
+                .filter(entry -> entry.getValue() >= 0.9 * best)
+                .findFirst()
+                .ifPresent(entry -> log.info(String.format("Knee point: pool size %d, %,.1f msgs/s (best: %,.1f msgs/s)", entry.getKey(), entry.getValue(), best)));
+    }
+
+    // ---
+    // Run the agents over pools of 2, 4, ... connections and log the message throughput,
+    // how long the agents waited for a connection, and the knee point.
+    // The pool's and Db's meters go to the same registry, so the metrics dump of each run
+    // shows both.
+    // ---
+
+    @Test
+    @Tag("slow")
+    void runAgentsOverPoolSizes() {
+        final Map<Integer, Double> msgsPerSec = new LinkedHashMap<>();
+        final List<String> results = new ArrayList<>();
+        withQuietAgents(() -> {
+            for (int poolSize : sweepPoolSizes) {
+                final MeterRegistry registry = new SimpleMeterRegistry();
+                try (ShardPools pools = new ShardPools("agents_pool", 1, sweepPoolProfile.withMaximumPoolSize(poolSize), Optional.of(registry))) {
+                    final Db pooledDb = new Db(pools.getJdbcTemplates(), registry);
+                    pooledDb.setupDatabase(true);
+                    results.add(runAgentsOnPool(pooledDb, new TransactionalDb(pooledDb), registry, poolSize, msgsPerSec));
+                }
+            }
+        });
+        results.forEach(log::info);
+        logKneePoint(msgsPerSec);
+    }
+
+    // ---
+    // The same sweep on the Spring-configured pool, which is resized between runs through
+    // HikariCP's config MXBean (the pool keeps running). Its meters and Db's go to the
+    // MeterRegistry bean of SpringPoolConfig. The pool size is restored at the end.
+    // ---
+
+    @Test
+    @Tag("slow")
+    void runAgentsOverSpringPoolSizes() {
+        final HikariConfigMXBean poolConfig = ((HikariDataSource) dataSource).getHikariConfigMXBean();
+        final int originalMaximumPoolSize = poolConfig.getMaximumPoolSize();
+        final int originalMinimumIdle = poolConfig.getMinimumIdle();
+        final MeterRegistry registry = db.getMetrics().getRegistry();
+        final Map<Integer, Double> msgsPerSec = new LinkedHashMap<>();
+        final List<String> results = new ArrayList<>();
+        try {
+            withQuietAgents(() -> {
+                for (int poolSize : sweepPoolSizes) {
+                    poolConfig.setMaximumPoolSize(poolSize);
+                    poolConfig.setMinimumIdle(poolSize);
+                    db.setupDatabase(true);
+                    results.add(runAgentsOnPool(db, txDb, registry, poolSize, msgsPerSec));
+                }
+            });
+        } finally {
+            poolConfig.setMaximumPoolSize(originalMaximumPoolSize);
+            poolConfig.setMinimumIdle(originalMinimumIdle);
+        }
+        results.forEach(log::info);
+        logKneePoint(msgsPerSec);
+    }
+
+    // ---
+    // Run the same agents over the message table, over an MVStore used directly and over plain
+    // Java data structures (see MessageStore), and log the messages stored per second. All are
+    // in memory, and the agents only use the MessageStore interface in all cases:
+    // - Db vs. MVStore is what SQL, JDBC, Spring and the connection pool cost on top of H2's
+    //   storage engine
+    // - InMemoryMessageStore is the upper bound, what the agent protocol itself allows
+    // ---
+
+    @Test
+    void runAgentsOverMessageStores() {
+        final Map<String, Double> msgsPerSec = new LinkedHashMap<>();
+        withQuietAgents(() -> {
+            try (ShardPools pools = new ShardPools("agents_store", 1, poolSizePerShard)) {
+                final Db pooledDb = new Db(pools.getJdbcTemplates());
+                pooledDb.setupDatabase(true);
+                msgsPerSec.put("Db (JDBC)", runAgentsOverStore(pooledDb, storeAgentCount, Duration.ofSeconds(1), runTime));
+            }
+            try (MvStoreMessageStore mvStore = new MvStoreMessageStore(Optional.empty())) {
+                msgsPerSec.put("MVStore", runAgentsOverStore(mvStore, storeAgentCount, Duration.ofSeconds(1), runTime));
+            }
+            msgsPerSec.put("In-memory", runAgentsOverStore(new InMemoryMessageStore(), storeAgentCount, Duration.ofSeconds(1), runTime));
+        });
+        msgsPerSec.forEach((name, rate) -> log.info(String.format("%-10s %,10.1f msgs/s", name, rate)));
+    }
+
+    // ---
+    // Record the operations of a run of agents over InMemoryMessageStore (see OpTrace), then
+    // replay that same sequence of operations against each MessageStore, single-threaded and
+    // without the agents' sleeping, and log operations and messages per second.
+    // All replays must send the same number of messages as the recording did.
+    // ---
+
+    @Test
+    void recordAndReplayTrace() throws IOException {
+        final Path file = Files.createTempFile("agents_", ".trace");
+        final long[] recordedMsgs = {0};
+        withQuietAgents(() -> {
+            final InMemoryMessageStore recordedStore = new InMemoryMessageStore();
+            try (OpTrace.Recorder recorder = new OpTrace.Recorder(recordedStore, file)) {
+                runAgentsOverStore(recorder, storeAgentCount, Duration.ZERO, runTime);
+            }
+            recordedMsgs[0] = recordedStore.countAllMsgs();
+        });
+        final List<OpTrace.TracedOp> ops = OpTrace.load(file);
+        log.info(String.format("Recorded %,d operations, %,d messages, into %,d bytes", ops.size(), recordedMsgs[0], Files.size(file)));
+        final Map<String, OpTrace.ReplayResult> results = new LinkedHashMap<>();
+        try (ShardPools pools = new ShardPools("agents_replay", 1, poolSizePerShard)) {
+            final Db pooledDb = new Db(pools.getJdbcTemplates());
+            pooledDb.setupDatabase(true);
+            results.put("Db (JDBC)", OpTrace.replay(ops, pooledDb));
+        }
+        try (MvStoreMessageStore mvStore = new MvStoreMessageStore(Optional.empty())) {
+            results.put("MVStore", OpTrace.replay(ops, mvStore));
+        }
+        results.put("In-memory", OpTrace.replay(ops, new InMemoryMessageStore()));
+        results.forEach((name, result) -> {
+            final double elapsed_s = result.elapsed().toNanos() / 1_000_000_000.0;
+            log.info(String.format("%-10s %,10.0f ops/s %,10.0f msgs/s", name, result.ops() / elapsed_s, result.msgsSent() / elapsed_s));
+        });
+        Assertions.assertThat(results.values()).allMatch(result -> result.msgsSent() == recordedMsgs[0]);
+        Files.delete(file);
+    }
+
+    // ---
+    // Run "runnable" with the agents' logging switched down to WARN
+    // ---
+
+    private static void withQuietAgents(@NotNull Runnable runnable) {
+        final ch.qos.logback.classic.Logger agentLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(AgentRunnable.class);
+        final Level previousLevel = agentLogger.getLevel();
+        agentLogger.setLevel(Level.WARN);
+        try {
+            runnable.run();
+        } finally {
+            agentLogger.setLevel(previousLevel);
+        }
+    }
+
+    // ---
+    // Run each of the "benchmarkRuns" and log, for its measurement window:
+    // - true messages sent per second, and acks per second
+    // - the end-to-end ack latency (from "when_created" to "when_acked" of the true messages)
+    //   as percentiles; true messages not acked by the end of the run are left out
+    // - Db operations (as counted by DbMetrics) per message, true or ack
+    // The agents' logging is switched down, as it would otherwise dominate.
+    // ---
+
+    @Test
+    @Tag("slow")
+    void runBenchmark() {
+        final List<String> results = new ArrayList<>();
+        withQuietAgents(() -> {
+            for (BenchmarkRun run : benchmarkRuns) {
+                db.setupDatabase(true);
+                final RunResult result = runMsgExchangingAgents(db, txDb, run.agentCount(), run.warmUp(), run.runTime(),
+                        Optional.empty(), threadMode, Optional.empty(), new AgentRunnable.Workload(run.sendProbability(), run.payloadChars()));
+                results.add(evaluate(run, result));
+            }
+        });
+        results.forEach(log::info);
+    }
+
+    private @NotNull String evaluate(@NotNull BenchmarkRun run, @NotNull RunResult result) {
+        final double window_s = Duration.between(result.measuredFrom(), result.measuredTo()).toNanos() / 1_000_000_000.0;
+        final List<Db.ThroughputBucket> buckets = db.throughputPerBucket(result.measuredFrom(), result.measuredTo(), Duration.ofSeconds(1));
+        final long trueMsgCount = buckets.stream().mapToLong(Db.ThroughputBucket::trueMsgs).sum();
+        final long ackMsgCount = buckets.stream().mapToLong(Db.ThroughputBucket::ackMsgs).sum();
+        final Db.AckLatencies latencies = db.ackLatencies(result.measuredFrom(), result.measuredTo(), Duration.ofMillis(1), List.of(0.50, 0.90, 0.99));
+        final long msgCount = trueMsgCount + ackMsgCount;
+        return String.format("%s: %,9.1f msgs/s, %,9.1f acks/s, ack latency p50 %,6d ms, p90 %,6d ms, p99 %,6d ms, max %,6d ms, %,5.2f Db ops/msg",
+                run,
+                trueMsgCount / window_s,
+                ackMsgCount / window_s,
+                latencies.percentiles().getOrDefault(0.50, Duration.ZERO).toMillis(),
+                latencies.percentiles().getOrDefault(0.90, Duration.ZERO).toMillis(),
+                latencies.percentiles().getOrDefault(0.99, Duration.ZERO).toMillis(),
+                latencies.max().toMillis(),
+                (msgCount == 0) ? 0.0 : result.dbOps() / (double) msgCount);
+    }
+
+}
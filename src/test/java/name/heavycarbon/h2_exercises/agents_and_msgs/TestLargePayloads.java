@@ -0,0 +1,114 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.crud.GiveMeRandomText;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.StringReader;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+// ---
+// Send messages with large texts ("bodies"), with and without compression, and read them back.
+//
+// Checked:
+// - A text longer than Db.maxTextLength goes to the body table, and the inbox query does
+//   not load it: the TrueMsg only has the preview until getText() is called.
+// - getText() gives back exactly the text that was sent.
+//
+// Logged: the bytes stored per body, and the time to retrieve the inbox vs. the time
+// to load the bodies.
+// ---
+
+@Slf4j
+@AutoConfigureJdbc
+@SpringBootTest(classes = {TestLargePayloads.class, Db.class})
+public class TestLargePayloads {
+
+    // ===
+    // Text lengths to try (in chars)
+    // ===
+
+    private final List<Integer> textLengths = List.of(50, 1_000, 10_000, 100_000, 1_000_000);
+
+    // ===
+    // Compression settings to try
+    // ===
+
+    private final List<Db.BodyCompression> compressions = List.of(Db.BodyCompression.none(), Db.BodyCompression.above(4096));
+
+    private final AgentId sender = new AgentId(1);
+    private final AgentId receiver = new AgentId(2);
+
+    @Autowired
+    private Db db;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // ---
+    // Random words, which compress about as well as natural text
+    // ---
+
+    private static String buildText(int length, Random rand) {
+        final StringBuilder buf = new StringBuilder(length + 100);
+        while (buf.length() < length) {
+            buf.append(GiveMeRandomText.getRandomText(rand)).append(' ');
+        }
+        buf.setLength(length);
+        return buf.toString();
+    }
+
+    private long storedBodyBytes(MsgId msgId) {
+        final List<Long> res = jdbcTemplate.query(
+                "SELECT OCTET_LENGTH(" + Db.field_body + ") FROM " + Db.fqTableName_body + " WHERE " + Db.field_id + " = ?",
+                ps -> ps.setInt(1, msgId.getRaw()),
+                (row, rowNum) -> row.getLong(1));
+        return res.isEmpty() ? 0 : res.get(0);
+    }
+
+    // ---
+    // Testing, or rather, running!
+    // ---
+
+    @Test
+    void sendAndReadLargePayloads() {
+        final Random rand = new Random(4711);
+        for (Db.BodyCompression compression : compressions) {
+            for (int textLength : textLengths) {
+                db.setupDatabase(true);
+                final String text = buildText(textLength, rand);
+                final MsgId msgId = db.sendMsgWithBody(Instant.now(), sender, receiver, new StringReader(text), compression);
+                // inbox query: no body is read
+                final long startRetrieve = System.nanoTime();
+                final List<MsgBase> msgs = db.retrieveMsgs(receiver, MsgState.fresh);
+                final long retrieve_us = (System.nanoTime() - startRetrieve) / 1000;
+                Assertions.assertThat(msgs).hasSize(1);
+                final TrueMsg msg = (TrueMsg) msgs.get(0);
+                Assertions.assertThat(msg.getId()).isEqualTo(msgId);
+                Assertions.assertThat(msg.hasBody()).isEqualTo(textLength > Db.maxTextLength);
+                Assertions.assertThat(text).startsWith(msg.getPreview());
+                // body read on demand
+                final long startLoad = System.nanoTime();
+                final String loadedText = msg.getText();
+                final long load_us = (System.nanoTime() - startLoad) / 1000;
+                Assertions.assertThat(loadedText).isEqualTo(text);
+                log.info(String.format("%-40s %,10d chars: %,10d bytes stored, inbox query %,8d us, body load %,8d us",
+                        compression, textLength, storedBodyBytes(msgId), retrieve_us, load_us));
+            }
+        }
+    }
+
+}
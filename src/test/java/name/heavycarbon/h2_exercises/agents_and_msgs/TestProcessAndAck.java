@@ -0,0 +1,87 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.ShardPools;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.AckMsg;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.assertj.core.api.Assertions;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// ---
+// Process-and-ack inside the database engine (see Db.processAndAck()), in both schema modes.
+//
+// "a" sends "msgCount" true messages to "b", "b" processes them in batches of "batchSize",
+// then "a" processes the acks. The states and the backlog counters are checked at the end.
+//
+// The function behind Db.processAndAck() is a class of this project, which H2 can only load
+// if it runs embedded in this JVM. So this runs over an in-memory database of its own (see
+// ShardPools), not over the Spring-configured DataSource, which may be an H2 server.
+// ---
+
+@Slf4j
+public class TestProcessAndAck {
+
+    // ===
+    // How many messages "a" sends to "b", and how many messages are processed per call
+    // ===
+
+    private final int msgCount = 25;
+    private final int batchSize = 10;
+
+    private final AgentId a = new AgentId(1);
+    private final AgentId b = new AgentId(2);
+
+    private final int poolSize = 4;
+
+    private List<MsgBase> processAll(@NotNull Db db, @NotNull AgentId receiver) {
+        final List<MsgBase> res = new ArrayList<>();
+        List<MsgBase> batch;
+        do {
+            batch = db.processAndAck(receiver, batchSize, Instant.now());
+            Assertions.assertThat(batch.size()).isLessThanOrEqualTo(batchSize);
+            res.addAll(batch);
+        } while (!batch.isEmpty());
+        return res;
+    }
+
+    private void run(@NotNull Db db, @NotNull Db.SchemaMode mode) {
+        db.setupDatabase(true, mode);
+        db.installProcessAndAck();
+        final List<MsgToSend> msgs = new ArrayList<>();
+        for (int i = 0; i < msgCount; i++) {
+            msgs.add(new MsgToSend(Instant.now(), a, b, "Urban Tornado " + i));
+        }
+        db.sendMsgs(msgs);
+        final List<MsgBase> processedByB = processAll(db, b);
+        Assertions.assertThat(processedByB).hasSize(msgCount).allMatch(msg -> msg instanceof TrueMsg && msg.getState() == MsgState.seen);
+        Assertions.assertThat(db.countMsgs(a, MsgState.fresh)).isEqualTo(msgCount);
+        final List<MsgBase> processedByA = processAll(db, a);
+        Assertions.assertThat(processedByA).hasSize(msgCount).allMatch(msg -> msg instanceof AckMsg && msg.getState() == MsgState.seen);
+        // acks are not acked
+        Assertions.assertThat(db.countMsgs(b, MsgState.fresh)).isZero();
+        Assertions.assertThat(db.countAllMsgs()).isEqualTo(2L * msgCount);
+        Assertions.assertThat(db.reconcileBacklogCounters(false)).isEmpty();
+        log.info("Mode {}: {} messages processed and acked in the engine", mode, processedByB.size());
+    }
+
+    @Test
+    void processAndAckInEngine() {
+        try (ShardPools pools = new ShardPools("process_and_ack", 1, poolSize)) {
+            final Db db = new Db(pools.getJdbcTemplates());
+            for (Db.SchemaMode mode : Db.SchemaMode.values()) {
+                run(db, mode);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// ---
+// Time how long a poll (countMsgs() followed by retrieveMsgs()) takes as the message table
+// grows from 10'000 to 10'000'000 rows. Thanks to the inbox index, the poll time should stay
+// (roughly) flat.
+//
+// The bulk of the table consists of "seen" messages spread over many receivers. The probed
+// receiver always has the same number of "fresh" messages, so that the amount of work
+// that a poll really has to do does not change with table size.
+//
+// The poll times are just logged. What is checked is that H2 indeed uses the inbox index.
+//
+// Filling 10'000'000 rows takes minutes, so this is tagged "slow" and only run by
+// "./gradlew slowTest" (see build.gradle.kts).
+// ---
+
+@Slf4j
+@AutoConfigureJdbc
+@SpringBootTest(classes = {TestTimingInboxPolls.class, Db.class})
+public class TestTimingInboxPolls {
+
+    // ===
+    // Table sizes to probe. Drop the larger ones for a quick run.
+    // ===
+
+    private final List<Integer> rowCounts = List.of(10_000, 100_000, 1_000_000, 10_000_000);
+
+    // ===
+    // The bulk insert is done in chunks of "chunkSize" rows (one statement and one commit each),
+    // so that no single transaction has to hold millions of rows
+    // ===
+
+    private final int chunkSize = 200_000;
+
+    // ===
+    // Over how many receivers the "seen" messages are spread
+    // ===
+
+    private final int receiverCount = 1000;
+
+    // ===
+    // How many "fresh" messages the probed receiver has, and how many polls are timed
+    // ===
+
+    private final int freshCount = 10;
+    private final int pollCount = 1000;
+
+    // The probed receiver is outside the range of the bulk receivers
+
+    private final AgentId probedReceiver = new AgentId(receiverCount + 1);
+    private final AgentId sender = new AgentId(1);
+
+    @Autowired
+    private Db db;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // ---
+    // Bulk-insert (to - from + 1) "seen" messages using H2's SYSTEM_RANGE table function.
+    // https://h2database.com/html/functions.html#system_range
+    // ---
+
+    private void fillWithSeenMsgs(long from, long to) {
+        final String sql = "INSERT INTO "
+                + Db.fqTableName_message
+                + " ("
+                + Db.field_state + ","
+                + Db.field_state_plain + ","
+                + Db.field_sending_method + ","
+                + Db.field_sender + ","
+                + Db.field_receiver + ","
+                + Db.field_is_ack + ","
+                + Db.field_when_created + ","
+                + Db.field_when_acked + ","
+                + Db.field_text
+                + " ) "
+                + " SELECT ?, ?, 'fillWithSeenMsgs', MOD(x, ?) + 1, MOD(x / ?, ?) + 1, FALSE, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, CONCAT('bulk ', x) "
+                + " FROM SYSTEM_RANGE(?, ?)";
+        jdbcTemplate.update(sql,
+                MsgState.seen.getRaw(),
+                MsgState.seen.toString(),
+                receiverCount,
+                receiverCount,
+                receiverCount,
+                from,
+                to);
+    }
+
+    private void sendFreshMsgsToProbedReceiver() {
+        final List<MsgToSend> msgs = new ArrayList<>(freshCount);
+        for (int i = 0; i < freshCount; i++) {
+            msgs.add(new MsgToSend(Instant.now(), sender, probedReceiver, "probe " + i));
+        }
+        db.sendMsgsWithJdbcTemplateReturningIds(msgs);
+    }
+
+    private double timePollMicros() {
+        final long start = System.nanoTime();
+        for (int i = 0; i < pollCount; i++) {
+            final int count = db.countMsgs(probedReceiver, MsgState.fresh);
+            final List<MsgBase> msgs = db.retrieveMsgs(probedReceiver, MsgState.fresh);
+            assert count == msgs.size();
+        }
+        final long elapsed = System.nanoTime() - start;
+        return (elapsed / 1000.0) / pollCount;
+    }
+
+    // ---
+    // Testing, or rather, running!
+    // ---
+
+    @Test
+    @Tag("slow")
+    void timeInboxPolls() {
+        db.setupDatabase(true);
+        sendFreshMsgsToProbedReceiver();
+        final List<String> plans = db.explainInboxQueries(probedReceiver);
+        plans.forEach(plan -> log.info("Plan: {}", plan));
+        plans.forEach(plan -> Assertions.assertThat(plan.toLowerCase()).contains(Db.indexName_inbox.toLowerCase()));
+        long rowsSoFar = freshCount;
+        for (int rowCount : rowCounts) {
+            for (long from = rowsSoFar + 1; from <= rowCount; from += chunkSize) {
+                fillWithSeenMsgs(from, Math.min(from + chunkSize - 1, rowCount));
+            }
+            rowsSoFar = rowCount;
+            // once to warm up, once to measure
+            timePollMicros();
+            final double micros = timePollMicros();
+            log.info(String.format("%,12d rows: %8.1f us per poll", rowCount, micros));
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.crud.GiveMeRandomText;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import org.assertj.core.api.Assertions;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.util.*;
+
+// ---
+// Compare the "Verbose" and the "Lean" schema mode of Db (see Db.SchemaMode).
+//
+// For each mode, the table is recreated and filled through the batch send methods.
+// Logged: inserts per second, and the bytes per row that H2 reports for the message table
+// (DISK_SPACE_USED, which also works for an in-memory database).
+//
+// The only thing checked is that all the messages arrived, in both modes.
+// ---
+
+@Slf4j
+@AutoConfigureJdbc
+@SpringBootTest(classes = {TestTimingSchemaModes.class, Db.class})
+public class TestTimingSchemaModes {
+
+    // ===
+    // How many messages to send per mode and round, and how many messages per batch
+    // ===
+
+    private final int msgCount = 20_000;
+    private final int batchSize = 100;
+
+    // ===
+    // Rounds run before the measured round, to warm up JIT and database
+    // ===
+
+    private final int warmupRounds = 2;
+
+    private final AgentId sender = new AgentId(1);
+    private final AgentId receiver = new AgentId(2);
+
+    @Autowired
+    private Db db;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private record Result(double insertsPerSec, double bytesPerRow) {
+    }
+
+    private List<MsgToSend> buildMsgs(@NotNull Random rand) {
+        final List<MsgToSend> res = new ArrayList<>(msgCount);
+        for (int i = 0; i < msgCount; i++) {
+            res.add(new MsgToSend(Instant.now(), sender, receiver, GiveMeRandomText.getRandomText(rand)));
+        }
+        return res;
+    }
+
+    private void send(@NotNull List<MsgToSend> msgs) {
+        for (int i = 0; i < msgs.size(); i += batchSize) {
+            db.sendMsgsWithJdbcTemplateReturningIds(msgs.subList(i, Math.min(i + batchSize, msgs.size())));
+        }
+    }
+
+    private long diskSpaceUsed() {
+        final Long res = jdbcTemplate.queryForObject("SELECT DISK_SPACE_USED('" + Db.fqTableName_message + "')", Long.class);
+        return (res == null) ? 0 : res;
+    }
+
+    private @NotNull Result run(@NotNull Db.SchemaMode mode, @NotNull List<MsgToSend> msgs) {
+        for (int i = 0; i < warmupRounds; i++) {
+            db.setupDatabase(true, mode);
+            send(msgs);
+        }
+        db.setupDatabase(true, mode);
+        final long start = System.nanoTime();
+        send(msgs);
+        final long elapsed = System.nanoTime() - start;
+        Assertions.assertThat(db.countMsgs(receiver, MsgState.fresh)).isEqualTo(msgs.size());
+        return new Result(
+                msgs.size() / (elapsed / 1_000_000_000.0),
+                diskSpaceUsed() / (double) msgs.size());
+    }
+
+    // ---
+    // Testing, or rather, running!
+    // ---
+
+    @Test
+    void timeSchemaModes() {
+        final List<MsgToSend> msgs = buildMsgs(new Random(42));
+        final Map<Db.SchemaMode, Result> results = new EnumMap<>(Db.SchemaMode.class);
+        for (Db.SchemaMode mode : Db.SchemaMode.values()) {
+            results.put(mode, run(mode, msgs));
+        }
+        // leave the default behind for whoever uses the database next
+        db.setupDatabase(true);
+        results.forEach((mode, result) -> log.info(String.format("%-8s %10.0f inserts/s %8.1f bytes/row",
+                mode, result.insertsPerSec(), result.bytesPerRow())));
+    }
+
+}
@@ -0,0 +1,149 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.crud.GiveMeRandomText;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureJdbc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
+
+import java.time.Instant;
+import java.util.*;
+
+// ---
+// Time how many inserts per second each of the "send" methods of Db achieves.
+//
+// The "before" figure is given by "UncachedSimpleJdbc", which builds a new SimpleJdbcInsert
+// for every message, as Db used to do. It has to reload the table metadata every time.
+// The "after" figures are those of the Db methods, which reuse the statements compiled once.
+//
+// Like TestAgentsExchangingMsgs, this doesn't check anything, it just logs the numbers.
+// ---
+
+@Slf4j
+@AutoConfigureJdbc
+@SpringBootTest(classes = {TestTimingSendMethods.class, Db.class})
+public class TestTimingSendMethods {
+
+    // ===
+    // How many messages to send per method and round, and how many messages per batch
+    // ===
+
+    private final int msgCount = 2000;
+    private final int batchSize = 50;
+
+    // ===
+    // Rounds run before the measured round, to warm up JIT and database
+    // ===
+
+    private final int warmupRounds = 2;
+
+    private enum SendMethod {
+        UncachedSimpleJdbc,
+        WithSimpleJdbc,
+        WithSimpleJdbcReturningId,
+        WithJdbcTemplate,
+        WithJdbcTemplateReturningId,
+        BatchWithSimpleJdbc,
+        BatchWithJdbcTemplateReturningIds
+    }
+
+    @Autowired
+    private Db db;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final AgentId sender = new AgentId(1);
+    private final AgentId receiver = new AgentId(2);
+
+    // ---
+    // Build the messages beforehand, so that only the sending is timed
+    // ---
+
+    private List<MsgToSend> buildMsgs(@NotNull Random rand) {
+        final List<MsgToSend> res = new ArrayList<>(msgCount);
+        for (int i = 0; i < msgCount; i++) {
+            res.add(new MsgToSend(Instant.now(), sender, receiver, GiveMeRandomText.getRandomText(rand)));
+        }
+        return res;
+    }
+
+    // ---
+    // What Db did before it had a statement registry
+    // ---
+
+    private void sendUncached(@NotNull MsgToSend msg) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put(Db.field_state, MsgState.fresh.getRaw());
+        values.put(Db.field_state_plain, MsgState.fresh.toString());
+        values.put(Db.field_sending_method, "sendUncached");
+        values.put(Db.field_sender, msg.sender().getRaw());
+        values.put(Db.field_receiver, msg.receiver().getRaw());
+        values.put(Db.field_is_ack, false);
+        values.put(Db.field_when_created, msg.createdWhen());
+        values.put(Db.field_text, msg.text());
+        new SimpleJdbcInsert(jdbcTemplate)
+                .withSchemaName(Db.schemaName)
+                .withTableName(Db.tableName_message)
+                .usingGeneratedKeyColumns(Db.field_id)
+                .execute(values);
+    }
+
+    private void send(@NotNull SendMethod method, @NotNull List<MsgToSend> msgs) {
+        switch (method) {
+            case UncachedSimpleJdbc -> msgs.forEach(this::sendUncached);
+            case WithSimpleJdbc ->
+                    msgs.forEach(msg -> db.sendMsgWithSimpleJdbc(msg.createdWhen(), msg.sender(), msg.receiver(), msg.text()));
+            case WithSimpleJdbcReturningId ->
+                    msgs.forEach(msg -> db.sendMsgWithSimpleJdbcReturningId(msg.createdWhen(), msg.sender(), msg.receiver(), msg.text()));
+            case WithJdbcTemplate ->
+                    msgs.forEach(msg -> db.sendMsgWithJdbcTemplate(msg.createdWhen(), msg.sender(), msg.receiver(), msg.text()));
+            case WithJdbcTemplateReturningId ->
+                    msgs.forEach(msg -> db.sendMsgWithJdbcTemplateReturningId(msg.createdWhen(), msg.sender(), msg.receiver(), msg.text()));
+            case BatchWithSimpleJdbc -> {
+                for (int i = 0; i < msgs.size(); i += batchSize) {
+                    db.sendMsgsWithSimpleJdbc(msgs.subList(i, Math.min(i + batchSize, msgs.size())));
+                }
+            }
+            case BatchWithJdbcTemplateReturningIds -> {
+                for (int i = 0; i < msgs.size(); i += batchSize) {
+                    db.sendMsgsWithJdbcTemplateReturningIds(msgs.subList(i, Math.min(i + batchSize, msgs.size())));
+                }
+            }
+        }
+    }
+
+    private double timeInsertsPerSecond(@NotNull SendMethod method, @NotNull List<MsgToSend> msgs) {
+        final long start = System.nanoTime();
+        send(method, msgs);
+        final long elapsed = System.nanoTime() - start;
+        return msgs.size() / (elapsed / 1_000_000_000.0);
+    }
+
+    // ---
+    // Testing, or rather, running!
+    // ---
+
+    @Test
+    void timeSendMethods() {
+        db.setupDatabase(true);
+        final List<MsgToSend> msgs = buildMsgs(new Random(42));
+        final Map<SendMethod, Double> results = new EnumMap<>(SendMethod.class);
+        for (SendMethod method : SendMethod.values()) {
+            for (int i = 0; i < warmupRounds; i++) {
+                send(method, msgs);
+            }
+            results.put(method, timeInsertsPerSecond(method, msgs));
+        }
+        results.forEach((method, perSec) -> log.info(String.format("%-32s %10.0f inserts/s", method, perSec)));
+    }
+
+}
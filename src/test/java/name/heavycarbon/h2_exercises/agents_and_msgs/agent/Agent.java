@@ -8,4 +8,32 @@ import org.jetbrains.annotations.NotNull;
 // ---
 
 public record Agent(@NotNull AgentId agentId, @NotNull Thread thread, @NotNull AgentRunnable runnable) {
+
+    // ---
+    // What kind of thread animates an agent:
+    // - Platform: one OS thread per agent, with its own stack. Good for a few hundred agents.
+    // - Virtual: a virtual thread (JDK 21), which the JVM mounts on a small pool of OS threads
+    //   ("carrier threads") and unmounts whenever it blocks, e.g. in Thread.sleep() or while
+    //   waiting for a pooled connection. Its stack lives on the heap and is small, so tens of
+    //   thousands of agents are fine.
+    //   https://docs.oracle.com/en/java/javase/21/core/virtual-threads.html
+    //
+    // A virtual thread cannot be unmounted while it holds a monitor ("synchronized"), it then
+    // "pins" its carrier thread. H2 synchronizes on the session for the duration of each
+    // statement, so statements on an embedded H2 do pin, but only for as long as the statement
+    // runs. Run with "-Djdk.tracePinnedThreads=short" to see where pinning happens.
+    // ---
+
+    public enum ThreadMode {Platform, Virtual}
+
+    public static @NotNull Agent build(@NotNull AgentId agentId, @NotNull AgentRunnable runnable, @NotNull ThreadMode threadMode) {
+        final Thread thread = switch (threadMode) {
+            // "daemon" so that the JVM can exit even if an agent does not stop
+            case Platform -> Thread.ofPlatform().name(agentId.toString()).daemon(true).unstarted(runnable);
+            // virtual threads are always daemon threads
+            case Virtual -> Thread.ofVirtual().name(agentId.toString()).unstarted(runnable);
+        };
+        return new Agent(agentId, thread, runnable);
+    }
+
 }
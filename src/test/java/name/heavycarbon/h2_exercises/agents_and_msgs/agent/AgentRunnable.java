@@ -1,32 +1,130 @@
 package name.heavycarbon.h2_exercises.agents_and_msgs.agent;
 
-import name.heavycarbon.h2_exercises.agents_and_msgs.crud.GiveMeRandomText;
 import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.InboxNotificationHub;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.MessageStore;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.TransactionalDb;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.WriteBehindBuffer;
 import name.heavycarbon.h2_exercises.agents_and_msgs.msg.*;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.StringReader;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.Optional;
+import java.util.SplittableRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class AgentRunnable implements Runnable {
 
+    // ---
+    // How the agent finds out that there is new mail:
+    // - Polling: count and claim the messages on every loop, sleeping a random time in-between.
+    // - Push: block on the InboxNotificationHub doorbell (rung by InboxTrigger) for the same random
+    //   time, and claim only if the doorbell rang. Needs an embedded H2 and Db.installInboxTrigger().
+    // ---
+
+    public enum WakeupMode {Polling, Push}
+
+    // ---
+    // What the agent sends:
+    // - "sendProbability": the probability of adding one more message to a burst (see
+    //   sendSeveralMsgsWithRandomText()). The mean burst size is p / (1 - p).
+    // - "payloads": the texts sent, see PayloadPool. If the largest text may be longer than
+    //   Db.maxTextLength, all texts are sent with a body, one by one through sendMsgWithBody(),
+    //   even if there is a write-behind buffer.
+    // - "seed": each agent draws all its random decisions and texts from its own SplittableRandom,
+    //   seeded from "seed" and its AgentId (see seedFor()). The same seed thus gives each agent
+    //   the same sequence of decisions. How the agents interleave still depends on the scheduler;
+    //   to repeat a run exactly, record it and replay it, see OpTrace.
+    // ---
+
+    public record Workload(double sendProbability, @NotNull PayloadPool payloads, long seed) {
+
+        public final static long defaultSeed = 42;
+
+        public Workload {
+            if (sendProbability < 0 || sendProbability >= 1) {
+                throw new IllegalArgumentException("'sendProbability' must be in [0, 1), is " + sendProbability);
+            }
+        }
+
+        // ---
+        // Texts of "payloadChars" chars, or the short texts of GiveMeRandomText if 0
+        // ---
+
+        public Workload(double sendProbability, int payloadChars) {
+            this(sendProbability, PayloadPool.build(PayloadPool.SizeDistribution.fixed(payloadChars), defaultSeed), defaultSeed);
+        }
+
+        public static @NotNull Workload standard() {
+            return new Workload(0.333, 0);
+        }
+
+        public long seedFor(@NotNull AgentId agentId) {
+            return seed ^ (agentId.getRaw() * 0x9E37_79B9_7F4A_7C15L);
+        }
+
+        public int maxPayloadChars() {
+            return payloads.getSizes().max();
+        }
+    }
+
     private final @NotNull AgentId me;
     private final @NotNull List<AgentId> others;
 
-    private final @NotNull Db db;
+    // Where the messages are kept. If it is a Db passed as such (see the constructors), the agent
+    // uses all the Db's sending methods and acks through the TransactionalDb. Otherwise, it only
+    // uses the MessageStore interface: batch sends, claims, and acks through ackClaimedMsgs().
+
+    private final @NotNull MessageStore store;
+    private final @NotNull Optional<Db> db;
+    private final @NotNull Optional<TransactionalDb> txDb;
+
+    // If present, sends and acks go through this buffer instead of directly to the database.
+    // Claims always go to the database directly.
+
+    private final @NotNull Optional<WriteBehindBuffer> writeBehind;
+
+    // All the random decisions and texts come from this generator, seeded by the workload.
+    // It is runnable-specific and thus thread-specific, which SplittableRandom must be, as it
+    // is not thread-safe (unlike java.util.Random, which pays for that with an atomic update
+    // per draw).
 
-    // To generate random text, use a "random",
-    // The random is runnable-specific and thus thread-specific.
-    // (as Random is thread-safe, one could also use a single instance
-    // with more contention)
+    private final @NotNull SplittableRandom rand;
 
-    private final Random rand = new Random();
+    private final @NotNull Workload workload;
+
+    // The maximum number of messages claimed per poll
+
+    private final static int maxClaimBatch = 20;
+
+    private final @NotNull WakeupMode wakeupMode;
+
+    // State used in "Push" mode only, see runPushNotified().
+    // Initially, act as if the doorbell had rung, as there may be mail from before.
+
+    private boolean doorbellRang = true;
+    private boolean inboxMayHoldMore = false;
+    private int falseAlarmRechecks = 0;
+    private long lastClaim_ns = System.nanoTime();
+    private int lastClaimCount = 0;
+
+    // After a "false alarm" (the doorbell rang, but the row was not committed yet), re-check
+    // after 1, 2, 4, ... ms, up to this many times.
+
+    private final static int maxFalseAlarmRechecks = 6;
+
+    // In "Push" mode, claim at least this often even if the doorbell stays silent.
+    // This is just insurance.
+
+    private final static Duration safetyClaimInterval = Duration.ofSeconds(1);
 
     // This atomic boolean is used to tell the thread animating this runnable to stop.
 
@@ -38,10 +136,37 @@ public class AgentRunnable implements Runnable {
     // Empirically, Spring injects the same JdbcTemplate in multiple places, so it's ok.
     // ---
 
-    public AgentRunnable(@NotNull Db db, @NotNull AgentId me, @NotNull List<AgentId> others) {
+    public AgentRunnable(@NotNull Db db, @NotNull TransactionalDb txDb, @NotNull AgentId me, @NotNull List<AgentId> others, @NotNull WakeupMode wakeupMode, @NotNull Optional<WriteBehindBuffer> writeBehind) {
+        this(db, txDb, me, others, wakeupMode, writeBehind, Workload.standard());
+    }
+
+    public AgentRunnable(@NotNull Db db, @NotNull TransactionalDb txDb, @NotNull AgentId me, @NotNull List<AgentId> others, @NotNull WakeupMode wakeupMode, @NotNull Optional<WriteBehindBuffer> writeBehind, @NotNull Workload workload) {
+        this(db, Optional.of(db), Optional.of(txDb), me, others, wakeupMode, writeBehind, workload);
+    }
+
+    // ---
+    // An agent that only uses the MessageStore interface of "store", which may also be a Db.
+    // It polls, as the doorbell of "Push" mode is rung by a trigger on the message table.
+    // Texts longer than Db.maxTextLength are not supported, as they need Db.sendMsgWithBody().
+    // ---
+
+    public AgentRunnable(@NotNull MessageStore store, @NotNull AgentId me, @NotNull List<AgentId> others, @NotNull Workload workload) {
+        this(store, Optional.empty(), Optional.empty(), me, others, WakeupMode.Polling, Optional.empty(), workload);
+        if (workload.maxPayloadChars() > Db.maxTextLength) {
+            throw new IllegalArgumentException("The payloads must be <= " + Db.maxTextLength + " chars with a plain MessageStore, are up to " + workload.maxPayloadChars());
+        }
+    }
+
+    private AgentRunnable(@NotNull MessageStore store, @NotNull Optional<Db> db, @NotNull Optional<TransactionalDb> txDb, @NotNull AgentId me, @NotNull List<AgentId> others, @NotNull WakeupMode wakeupMode, @NotNull Optional<WriteBehindBuffer> writeBehind, @NotNull Workload workload) {
         this.me = me;
         this.others = Collections.unmodifiableList(others);
+        this.store = store;
         this.db = db;
+        this.txDb = txDb;
+        this.writeBehind = writeBehind;
+        this.wakeupMode = wakeupMode;
+        this.workload = workload;
+        this.rand = new SplittableRandom(workload.seedFor(me));
         if (others.isEmpty()) {
             throw new IllegalArgumentException("The passed list of AgentId is empty!");
             // "others" may contain "me" or the same AgentId several times (why not)
@@ -61,10 +186,11 @@ public class AgentRunnable implements Runnable {
 
     // ---
     // Count the message addressed to "me" that are in state "fresh" (count both "ACKs" and True Messages)
+    // This reads the backlog counter maintained by Db instead of running a COUNT(*) on every loop.
     // ---
 
     private void countFreshMsgsAddressedToMeAndPrint() {
-        final int count = db.countMsgs(me, MsgState.fresh);
+        final long count = store.countBacklog(me, MsgState.fresh);
         if (count > 0) {
             log.info("{}: {} messages to process", me, count);
         } else {
@@ -72,8 +198,8 @@ public class AgentRunnable implements Runnable {
         }
     }
 
-    private boolean withProbabilityOneThird() {
-        return (rand.nextDouble() < 0.333);
+    private boolean withSendProbability() {
+        return (rand.nextDouble() < workload.sendProbability());
     }
 
     private boolean withProbabilityTwoThirds() {
@@ -98,6 +224,50 @@ public class AgentRunnable implements Runnable {
         return interrupted;
     }
 
+    // ---
+    // The "Push" mode equivalent of sleepRandomly(): the same random time, but spent waiting
+    // on the doorbell, which may cut the wait short. After a false alarm, the wait is short instead.
+    // ---
+
+    private boolean waitForMail() {
+        final Duration timeout;
+        if (falseAlarmRechecks > 0) {
+            timeout = Duration.ofMillis(1L << (falseAlarmRechecks - 1));
+        } else {
+            int steps = 0;
+            while (withProbabilityTwoThirds()) {
+                steps++;
+            }
+            timeout = Duration.ofMillis(100L * steps);
+        }
+        try {
+            if (InboxNotificationHub.getInstance().awaitMail(me, timeout)) {
+                doorbellRang = true;
+            }
+            return false;
+        } catch (InterruptedException ex) {
+            return true;
+        }
+    }
+
+    private boolean isClaimDue() {
+        return doorbellRang
+                || inboxMayHoldMore
+                || falseAlarmRechecks > 0
+                || (System.nanoTime() - lastClaim_ns) >= safetyClaimInterval.toNanos();
+    }
+
+    private void updateAfterClaim() {
+        lastClaim_ns = System.nanoTime();
+        inboxMayHoldMore = (lastClaimCount == maxClaimBatch);
+        if (lastClaimCount == 0 && (doorbellRang || falseAlarmRechecks > 0)) {
+            falseAlarmRechecks = (falseAlarmRechecks < maxFalseAlarmRechecks) ? falseAlarmRechecks + 1 : 0;
+        } else {
+            falseAlarmRechecks = 0;
+        }
+        doorbellRang = false;
+    }
+
     // ---
     // Obtain some receiver AgentId to send to
     // ---
@@ -109,16 +279,72 @@ public class AgentRunnable implements Runnable {
 
     // ---
     // Send a variable number of messages to other agents (an exponentially decaying number of messages
-    // because we re-test a random value in a loop)
+    // because we re-test a random value in a loop). The messages are first collected into a "burst".
+    // A burst of more than one message is sent in a single batch half of the time, otherwise
+    // message-by-message. With a write-behind buffer, the burst goes into the buffer.
     // ---
 
     private boolean sendSeveralMsgsWithRandomText() {
-        boolean interrupted = false;
-        while (!interrupted && withProbabilityOneThird()) {
+        final List<MsgToSend> burst = new ArrayList<>();
+        while (withSendProbability()) {
             final Instant createdWhen = Instant.now();
-            final String text = GiveMeRandomText.getRandomText(rand);
+            final String text = workload.payloads().next(rand);
             final AgentId receiver = getRandomReceiver();
-            final AgentId sender = this.me;
+            burst.add(new MsgToSend(createdWhen, this.me, receiver, text));
+        }
+        if (db.isEmpty()) {
+            return sendMsgsToStore(burst);
+        } else if (workload.maxPayloadChars() > Db.maxTextLength) {
+            return sendMsgsWithBody(db.get(), burst);
+        } else if (writeBehind.isPresent()) {
+            burst.forEach(msg -> writeBehind.get().send(msg));
+            return Thread.interrupted();
+        } else if (burst.size() > 1 && rand.nextBoolean()) {
+            return sendMsgsAsBatch(db.get(), burst);
+        } else {
+            return sendMsgsOneByOne(db.get(), burst);
+        }
+    }
+
+    private boolean sendMsgsToStore(@NotNull List<MsgToSend> burst) {
+        if (!burst.isEmpty()) {
+            List<MsgId> msgIds = store.sendMsgs(burst);
+            log.info("Inserted new messages {}", msgIds);
+        }
+        return Thread.interrupted();
+    }
+
+    private boolean sendMsgsWithBody(@NotNull Db db, @NotNull List<MsgToSend> burst) {
+        boolean interrupted = false;
+        final Iterator<MsgToSend> iter = burst.iterator();
+        while (iter.hasNext() && !interrupted) {
+            final MsgToSend msg = iter.next();
+            final MsgId msgId = db.sendMsgWithBody(msg.createdWhen(), msg.sender(), msg.receiver(), new StringReader(msg.text()), Db.BodyCompression.none());
+            log.info("Inserted new message {} with a body", msgId);
+            interrupted = Thread.interrupted();
+        }
+        return interrupted;
+    }
+
+    private boolean sendMsgsAsBatch(@NotNull Db db, @NotNull List<MsgToSend> burst) {
+        if (rand.nextBoolean()) {
+            db.sendMsgsWithSimpleJdbc(burst);
+        } else {
+            List<MsgId> msgIds = db.sendMsgsWithJdbcTemplateReturningIds(burst);
+            log.info("Inserted new messages {}", msgIds);
+        }
+        return Thread.interrupted();
+    }
+
+    private boolean sendMsgsOneByOne(@NotNull Db db, @NotNull List<MsgToSend> burst) {
+        boolean interrupted = false;
+        final Iterator<MsgToSend> iter = burst.iterator();
+        while (iter.hasNext() && !interrupted) {
+            final MsgToSend msg = iter.next();
+            final Instant createdWhen = msg.createdWhen();
+            final String text = msg.text();
+            final AgentId receiver = msg.receiver();
+            final AgentId sender = msg.sender();
             // choose a number in [0..3]
             switch (rand.nextInt(4)) {
                 case 0 -> {
@@ -142,35 +368,50 @@ public class AgentRunnable implements Runnable {
     }
 
     // ---
-    // Retrieve and process. Returns a boolean saying whether an interrupt occurred.
+    // Claim and process. Returns a boolean saying whether an interrupt occurred.
+    // The messages are claimed in a single statement. The "ack messages" among them are
+    // marked "seen" in a single statement. The "true messages" among them are marked "seen"
+    // and acked in a single transaction. That's 3 round trips and 2 commits per poll, whatever
+    // the number of messages.
+    // Once claimed, the messages are no longer visible to a poll, so the whole batch is
+    // processed even if a stop or interrupt comes in. The batch is bounded by "maxClaimBatch".
+    // With a write-behind buffer, marking "seen" and acking is left to the buffer's writer
+    // thread, which is then a single round trip per poll.
     // ---
 
     private boolean processMsg() {
-        final List<MsgBase> msgs = db.retrieveMsgs(me, MsgState.fresh);
+        final List<MsgBase> msgs = store.claimMsgs(me, maxClaimBatch);
+        lastClaimCount = msgs.size();
         boolean interrupted = Thread.interrupted();
-        final Iterator<MsgBase> iter = msgs.iterator();
-        while (iter.hasNext() && !interrupted && !stop.get()) {
-            final MsgBase msg = iter.next();
-            final Instant ackedWhen = Instant.now();
-            if (msg instanceof TrueMsg) {
-                final String receivedText = ((TrueMsg) msg).getText();
-                log.info("{}: from {}: {} with text '{}'", me, msg.getSender(), msg.getId(), receivedText);
-                // TODO The next two operations should be a single transaction!
-                // TODO For that, one needs to define an autowired class marked @Transactional
-                // TODO that performs those operations in a single method.
-                final MsgId ackMsgId;
-                {
-                    db.markMsgAsSeen(msg.getId(), ackedWhen, me);
-                    ackMsgId = db.sendAckMsgReturningId(me, (TrueMsg) msg, ackedWhen);
-                }
-                log.info("{}: acked {} by sending ack-msg {}", me, msg.getId(), ackMsgId);
+        final List<TrueMsg> trueMsgs = new ArrayList<>();
+        final List<MsgId> ackMsgIds = new ArrayList<>();
+        for (MsgBase msg : msgs) {
+            if (msg instanceof TrueMsg trueMsg) {
+                // only the preview: getText() would load the body from the database, if any
+                log.info("{}: from {}: {} with text '{}'{}", me, msg.getSender(), msg.getId(), trueMsg.getPreview(), trueMsg.hasBody() ? " (and a body)" : "");
+                trueMsgs.add(trueMsg);
             } else {
                 assert msg instanceof AckMsg;
                 log.info("{}: from {}: {}, which is ack-msg for {}", me, msg.getSender(), msg.getId(), ((AckMsg) msg).getTrueMsgId());
-                db.markMsgAsSeen(msg.getId(), ackedWhen, me);
-                log.info("{}: marked {} as 'seen'", me, msg.getId());
+                ackMsgIds.add(msg.getId());
             }
-            interrupted = Thread.interrupted();
+        }
+        if (writeBehind.isPresent()) {
+            ackMsgIds.forEach(msgId -> writeBehind.get().markSeen(me, msgId));
+            trueMsgs.forEach(trueMsg -> writeBehind.get().ack(me, trueMsg));
+            return interrupted || Thread.interrupted();
+        }
+        if (!ackMsgIds.isEmpty()) {
+            store.markClaimedMsgsAsSeen(ackMsgIds, Instant.now(), me);
+            log.info("{}: marked {} as 'seen'", me, ackMsgIds);
+            interrupted = interrupted || Thread.interrupted();
+        }
+        if (!trueMsgs.isEmpty()) {
+            final List<MsgId> sentAckMsgIds = txDb.isPresent() ? txDb.get().ackBatch(me, trueMsgs) : store.ackClaimedMsgs(me, trueMsgs, Instant.now());
+            for (int i = 0; i < trueMsgs.size(); i++) {
+                log.info("{}: acked {} by sending ack-msg {}", me, trueMsgs.get(i).getId(), sentAckMsgIds.get(i));
+            }
+            interrupted = interrupted || Thread.interrupted();
         }
         return interrupted;
     }
@@ -181,6 +422,13 @@ public class AgentRunnable implements Runnable {
 
     @Override
     public void run() {
+        switch (wakeupMode) {
+            case Polling -> runPolling();
+            case Push -> runPushNotified();
+        }
+    }
+
+    private void runPolling() {
         boolean interrupted = false;
         while (!stop.get() && !interrupted) {
             countFreshMsgsAddressedToMeAndPrint();
@@ -197,4 +445,23 @@ public class AgentRunnable implements Runnable {
         }
     }
 
+    // ---
+    // In "Push" mode, there is no count and no claim while the inbox is quiet, except for
+    // the rare "safety claim".
+    // ---
+
+    private void runPushNotified() {
+        boolean interrupted = false;
+        while (!stop.get() && !interrupted) {
+            interrupted = waitForMail();
+            if (!stop.get() && !interrupted) {
+                interrupted = sendSeveralMsgsWithRandomText();
+            }
+            if (!stop.get() && !interrupted && isClaimDue()) {
+                interrupted = processMsg();
+                updateAfterClaim();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,110 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.agent;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.Db;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// ---
+// A background task that keeps the message table small ("hot") by moving "seen" messages
+// into the archive table ("cold") once they have been acked for "archiveAfter".
+// If "purgeAfter" is given, messages acked longer ago than that are deleted from the archive.
+//
+// Work is done in batches of at most "maxBatch" messages (per shard), so that no transaction
+// holds many locks, or takes long, while the agents are running. As long as there is something
+// to archive or purge, the archiver goes on right away. Once it has caught up, it sleeps for "pause".
+// ---
+
+@Slf4j
+public class ArchiverRunnable implements Runnable {
+
+    public record Config(@NotNull Duration archiveAfter, @NotNull Optional<Duration> purgeAfter, int maxBatch, @NotNull Duration pause) {
+
+        public Config {
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+            }
+            if (purgeAfter.isPresent() && purgeAfter.get().compareTo(archiveAfter) < 0) {
+                throw new IllegalArgumentException("Messages would be purged (after " + purgeAfter.get() + ") before being archived (after " + archiveAfter + ")");
+            }
+        }
+    }
+
+    private final @NotNull Db db;
+    private final @NotNull Config config;
+
+    // This atomic boolean is used to tell the thread animating this runnable to stop.
+
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+
+    // Totals, for information
+
+    private long archivedCount = 0;
+    private long purgedCount = 0;
+
+    public ArchiverRunnable(@NotNull Db db, @NotNull Config config) {
+        this.db = db;
+        this.config = config;
+    }
+
+    // ---
+    // Called by the "control thread", same as AgentRunnable.windDown()
+    // ---
+
+    public void windDown() {
+        stop.set(true);
+    }
+
+    public long getArchivedCount() {
+        return archivedCount;
+    }
+
+    public long getPurgedCount() {
+        return purgedCount;
+    }
+
+    // ---
+    // Archive (and purge) one batch. Returns true if there may be more to do right away.
+    // ---
+
+    private boolean archiveAndPurgeOnce() {
+        final Instant now = Instant.now();
+        final int archived = db.archiveSeenMsgs(now.minus(config.archiveAfter()), config.maxBatch());
+        archivedCount += archived;
+        int purged = 0;
+        if (config.purgeAfter().isPresent()) {
+            purged = db.purgeArchivedMsgs(now.minus(config.purgeAfter().get()), config.maxBatch());
+            purgedCount += purged;
+        }
+        if (archived > 0 || purged > 0) {
+            log.debug("Archived {} and purged {} messages", archived, purged);
+        }
+        return archived > 0 || purged > 0;
+    }
+
+    // ---
+    // Runnable implementation
+    // ---
+
+    @Override
+    public void run() {
+        boolean interrupted = false;
+        while (!stop.get() && !interrupted) {
+            final boolean mayHaveMore = archiveAndPurgeOnce();
+            interrupted = Thread.interrupted();
+            if (!mayHaveMore && !stop.get() && !interrupted) {
+                try {
+                    Thread.sleep(config.pause().toMillis());
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        log.info("Archiver stopping: archived {} and purged {} messages in total", archivedCount, purgedCount);
+    }
+
+}
@@ -0,0 +1,114 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.agent;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.crud.GiveMeRandomText;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+// ---
+// The texts that agents send, built once per workload and shared by all its agents.
+//
+// The pool holds "poolSize" texts of the largest possible length, made of GiveMeRandomText
+// texts. A payload is one of them, cut to a length drawn from the SizeDistribution. If the
+// length is the full one (always the case with a "Fixed" distribution), the pooled text is
+// returned as is, without any allocation; otherwise there is one substring() per payload.
+//
+// The pool itself is built from "seed", so the same seed gives the same pool.
+// ---
+
+public final class PayloadPool {
+
+    // ---
+    // How the payload lengths are distributed, in chars:
+    // - Fixed: always "mean", or the short texts of GiveMeRandomText if "mean" is 0
+    // - Uniform: uniform in [1, 2 * mean - 1]
+    // - Exponential: 1 + an exponentially distributed value of mean "mean - 1" (many short
+    //   texts, a few long ones)
+    // The length never exceeds "max".
+    // ---
+
+    public record SizeDistribution(@NotNull Shape shape, int mean, int max) {
+
+        public enum Shape {Fixed, Uniform, Exponential}
+
+        public SizeDistribution {
+            if (mean < 0 || (mean == 0 && shape != Shape.Fixed)) {
+                throw new IllegalArgumentException("'mean' must be > 0 (or 0 for 'Fixed'), is " + mean);
+            }
+            if (max < mean) {
+                throw new IllegalArgumentException("'max' must be >= 'mean' (" + mean + "), is " + max);
+            }
+        }
+
+        public static @NotNull SizeDistribution fixed(int chars) {
+            return new SizeDistribution(Shape.Fixed, chars, chars);
+        }
+
+        public static @NotNull SizeDistribution uniform(int mean) {
+            return new SizeDistribution(Shape.Uniform, mean, 2 * mean - 1);
+        }
+
+        public static @NotNull SizeDistribution exponential(int mean, int max) {
+            return new SizeDistribution(Shape.Exponential, mean, max);
+        }
+
+        public boolean isShortTexts() {
+            return max == 0;
+        }
+
+        int sample(@NotNull RandomGenerator rand) {
+            final int res = switch (shape) {
+                case Fixed -> mean;
+                case Uniform -> 1 + rand.nextInt(2 * mean - 1);
+                case Exponential -> 1 + (int) (-(mean - 1) * Math.log(1.0 - rand.nextDouble()));
+            };
+            return Math.min(res, max);
+        }
+    }
+
+    private final static int poolSize = 64;
+
+    private final @NotNull SizeDistribution sizes;
+    private final @NotNull String[] texts;
+
+    private PayloadPool(@NotNull SizeDistribution sizes, @NotNull String[] texts) {
+        this.sizes = sizes;
+        this.texts = texts;
+    }
+
+    public static @NotNull PayloadPool build(@NotNull SizeDistribution sizes, long seed) {
+        if (sizes.isShortTexts()) {
+            return new PayloadPool(sizes, new String[0]);
+        }
+        final SplittableRandom rand = new SplittableRandom(seed);
+        final String[] texts = new String[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            final StringBuilder buf = new StringBuilder(sizes.max() + 100);
+            while (buf.length() < sizes.max()) {
+                buf.append(GiveMeRandomText.getRandomText(rand)).append(' ');
+            }
+            buf.setLength(sizes.max());
+            texts[i] = buf.toString();
+        }
+        return new PayloadPool(sizes, texts);
+    }
+
+    public @NotNull SizeDistribution getSizes() {
+        return sizes;
+    }
+
+    // ---
+    // A payload, drawn with "rand", which belongs to the caller
+    // ---
+
+    public @NotNull String next(@NotNull RandomGenerator rand) {
+        if (sizes.isShortTexts()) {
+            return GiveMeRandomText.getRandomText(rand);
+        }
+        final String text = texts[rand.nextInt(poolSize)];
+        final int length = sizes.sample(rand);
+        return (length == text.length()) ? text : text.substring(0, length);
+    }
+
+}
@@ -2,37 +2,60 @@ package name.heavycarbon.h2_exercises.agents_and_msgs.crud;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 // ---
 // Obtain some random text to send
+//
+// All the possible texts (a name followed by a number in [0, 100)) are built once, so getting
+// one allocates nothing. The same random draws as before pick the same text, so seeded runs
+// give the same texts as before.
 // ---
 
 public abstract class GiveMeRandomText {
 
-    public static String getRandomText(@NotNull Random rand) {
-        final String[] texts = {
-                "Bronze Charger",
-                "Bronze Dragon",
-                "Clean Sweep",
-                "Cliffhanger",
-                "Desert Eclipse",
-                "Desert Eye",
-                "Desert Tornado",
-                "Drum And Brass",
-                "Enigma",
-                "Fallout",
-                "Golden Cobra",
-                "Hidden Vengeance",
-                "Orange Gate",
-                "Red Lilly",
-                "Silver Charger",
-                "Silver Moon",
-                "Urban Tornado",
-                "White Citadel"
-        };
-        final int textIndex = rand.nextInt(texts.length);
-        final int anInteger = rand.nextInt(100);
-        return texts[textIndex] + " " + anInteger;
+    private final static String[] names = {
+            "Bronze Charger",
+            "Bronze Dragon",
+            "Clean Sweep",
+            "Cliffhanger",
+            "Desert Eclipse",
+            "Desert Eye",
+            "Desert Tornado",
+            "Drum And Brass",
+            "Enigma",
+            "Fallout",
+            "Golden Cobra",
+            "Hidden Vengeance",
+            "Orange Gate",
+            "Red Lilly",
+            "Silver Charger",
+            "Silver Moon",
+            "Urban Tornado",
+            "White Citadel"
+    };
+
+    private final static int numberCount = 100;
+
+    private final static String[] texts = buildTexts();
+
+    private static String[] buildTexts() {
+        final String[] res = new String[names.length * numberCount];
+        for (int i = 0; i < names.length; i++) {
+            for (int j = 0; j < numberCount; j++) {
+                res[i * numberCount + j] = names[i] + " " + j;
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Works with any generator: java.util.Random, SplittableRandom, ...
+    // ---
+
+    public static String getRandomText(@NotNull RandomGenerator rand) {
+        final int textIndex = rand.nextInt(names.length);
+        final int anInteger = rand.nextInt(numberCount);
+        return texts[textIndex * numberCount + anInteger];
     }
 }
@@ -0,0 +1,92 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// In-memory counters of the messages per receiver in state "fresh" and in state "claimed"
+// (the "backlog"), so that the backlog of a receiver can be read without a COUNT(*) query.
+// "seen" messages are not counted: they are of no interest to the receiver, and they
+// leave the message table through the archiver without anybody looking at their receiver.
+//
+// A LongAdder is used per counter: many senders increment the counters of the same receiver
+// concurrently, and a LongAdder spreads those updates over several cells instead of having
+// all the threads compete on a single AtomicLong. Reading a LongAdder sums the cells.
+// https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/util/concurrent/atomic/LongAdder.html
+//
+// The counters are only correct if all changes to the message table go through Db (which
+// keeps them up to date) and if there is a single Db instance per database. They are
+// (re)loaded from the database by Db.reconcileBacklogCounters().
+// ---
+
+public final class BacklogCounters {
+
+    // ---
+    // A difference between a counter and the actual count in the database
+    // ---
+
+    public record Mismatch(@NotNull AgentId receiver, @NotNull MsgState state, long counted, long actual) {
+    }
+
+    // For each receiver, the counter for "fresh" at index 0 and the counter for "claimed" at index 1
+
+    private final ConcurrentHashMap<AgentId, LongAdder[]> counters = new ConcurrentHashMap<>();
+
+    public static boolean isCounted(@NotNull MsgState state) {
+        return state == MsgState.fresh || state == MsgState.claimed;
+    }
+
+    private static int indexOf(@NotNull MsgState state) {
+        return switch (state) {
+            case fresh -> 0;
+            case claimed -> 1;
+            default -> throw new IllegalArgumentException("Messages in state " + state + " are not counted");
+        };
+    }
+
+    private @NotNull LongAdder adderOf(@NotNull AgentId receiver, @NotNull MsgState state) {
+        final LongAdder[] adders = counters.computeIfAbsent(receiver, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+        return adders[indexOf(state)];
+    }
+
+    public void add(@NotNull AgentId receiver, @NotNull MsgState state, long delta) {
+        if (isCounted(state)) {
+            adderOf(receiver, state).add(delta);
+        }
+    }
+
+    // ---
+    // "count" messages of "receiver" went from state "from" to state "to"
+    // ---
+
+    public void move(@NotNull AgentId receiver, @NotNull MsgState from, @NotNull MsgState to, long count) {
+        add(receiver, from, -count);
+        add(receiver, to, count);
+    }
+
+    public long get(@NotNull AgentId receiver, @NotNull MsgState state) {
+        final LongAdder[] adders = counters.get(receiver);
+        return (adders == null) ? 0 : adders[indexOf(state)].sum();
+    }
+
+    // ---
+    // Overwrite a counter. An update made concurrently may be lost, so this is only
+    // meant to be used while nothing else happens.
+    // ---
+
+    public void set(@NotNull AgentId receiver, @NotNull MsgState state, long value) {
+        final LongAdder adder = adderOf(receiver, state);
+        adder.reset();
+        adder.add(value);
+    }
+
+    public @NotNull Set<AgentId> getReceivers() {
+        return counters.keySet();
+    }
+
+}
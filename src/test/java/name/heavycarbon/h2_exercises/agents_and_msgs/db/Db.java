@@ -2,28 +2,152 @@ package name.heavycarbon.h2_exercises.agents_and_msgs.db;
 
 import name.heavycarbon.h2_exercises.agents_and_msgs.msg.*;
 import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.db.DbMetrics.Operation;
 import name.heavycarbon.h2_exercises.commons.DbHelpers;
+import name.heavycarbon.h2_exercises.commons.IndexedRowMapperFactory;
+import name.heavycarbon.h2_exercises.commons.IndexedRowMapperFactory.ColumnLookup;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.h2.tools.SimpleResultSet;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 @Component
-public class Db {
+public class Db implements MessageStore {
 
-    private final @NotNull JdbcTemplate jdbcTemplate;
+    // ---
+    // The message table can be spread over several H2 databases ("shards"), each one reached
+    // through its own JdbcTemplate (and thus its own connection pool). A message is stored
+    // in the shard of its receiver, see shardOf(). As every query and update of the agents
+    // is about the messages of a single receiver, every call goes to exactly one shard,
+    // except for the batch sends, which are split up by shard.
+    // With a single shard (the Spring-configured database), this is just the plain setup.
+    //
+    // Message ids are unique over all shards: shard k hands out k+1, k+1+n, k+1+2n, ...
+    // where n is the number of shards.
+    // ---
+
+    private record Shard(int index, @NotNull JdbcTemplate jdbcTemplate, @NotNull Map<SchemaMode, SimpleJdbcInsert> inserts_msg) {
+
+        @NotNull SimpleJdbcInsert insert_msg(@NotNull SchemaMode mode) {
+            return inserts_msg.get(mode);
+        }
+    }
+
+    private final @NotNull List<Shard> shards;
+
+    // ---
+    // Backlog counters, kept up to date by the methods below, so that countBacklog() need not
+    // query the database. See BacklogCounters.
+    // ---
+
+    private final @NotNull BacklogCounters backlogCounters = new BacklogCounters();
+
+    // ---
+    // Timing of all the operations that access the database. See DbMetrics.
+    // The meters go to the MeterRegistry of the application context if there is one
+    // (e.g. with Spring Boot Actuator), otherwise to a registry of this Db's own.
+    // ---
+
+    private final @NotNull DbMetrics metrics;
+
+    // ---
+    // Statement registry, instance part.
+    // A SimpleJdbcInsert is thread-safe once configured. It loads the table's metadata
+    // from the database when it is compiled, which happens once, at the latest on first use.
+    // Building a new instance for each insert would redo that work every time.
+    // There is one per shard, as the metadata comes from the shard's database, and one per
+    // schema mode, as the columns differ.
+    // The static part of the registry (the SQL texts) is further below.
+    // ---
 
     @Autowired
+    public Db(@NotNull JdbcTemplate jdbcTemplate, @NotNull ObjectProvider<MeterRegistry> meterRegistry) {
+        this(List.of(jdbcTemplate), meterRegistry.getIfAvailable(SimpleMeterRegistry::new));
+    }
+
     public Db(@NotNull JdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
+        this(List.of(jdbcTemplate));
+    }
+
+    // ---
+    // Used to build a sharded Db "by hand", e.g. over the pools of a ShardPools.
+    // Note that Spring's "@Transactional" only covers the database of the Spring-configured
+    // DataSource. See TransactionalDb.
+    // ---
+
+    public Db(@NotNull List<JdbcTemplate> shardTemplates) {
+        this(shardTemplates, new SimpleMeterRegistry());
+    }
+
+    public Db(@NotNull List<JdbcTemplate> shardTemplates, @NotNull MeterRegistry meterRegistry) {
+        if (shardTemplates.isEmpty()) {
+            throw new IllegalArgumentException("The passed list of JdbcTemplate is empty!");
+        }
+        final List<Shard> list = new ArrayList<>(shardTemplates.size());
+        for (JdbcTemplate jdbcTemplate : shardTemplates) {
+            final Map<SchemaMode, SimpleJdbcInsert> inserts_msg = new EnumMap<>(SchemaMode.class);
+            for (SchemaMode mode : SchemaMode.values()) {
+                inserts_msg.put(mode, new SimpleJdbcInsert(jdbcTemplate)
+                        .withSchemaName(schemaName)
+                        .withTableName(tableName_message)
+                        .usingGeneratedKeyColumns(field_id));
+            }
+            list.add(new Shard(list.size(), jdbcTemplate, Collections.unmodifiableMap(inserts_msg)));
+        }
+        this.shards = Collections.unmodifiableList(list);
+        this.metrics = new DbMetrics(meterRegistry);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public @NotNull DbMetrics getMetrics() {
+        return metrics;
+    }
+
+    // ---
+    // The shard holding the messages addressed to "receiver". Agent ids are consecutive
+    // integers, so a plain modulo spreads them evenly; "floorMod" also copes with negative ids.
+    // ---
+
+    private @NotNull Shard shardOf(@NotNull AgentId receiver) {
+        return shards.get(Math.floorMod(receiver.getRaw(), shards.size()));
     }
 
     // ---
@@ -46,19 +170,47 @@ public class Db {
     // fq_tn stands for "fully qualified table name"
     public final static String fqTableName_message = String.format("%s.%s", schemaName, tableName_message);
 
-    // "state_plain" exists just for usability if the user checks contents via console
+    // "seen" messages are moved to the archive table after a while, see archiveSeenMsgs()
+    public final static String tableName_archive = "messages_archive";
+    public final static String fqTableName_archive = String.format("%s.%s", schemaName, tableName_archive);
 
-    private final static String field_id = "id";
-    private final static String field_state = "state";
-    private final static String field_state_plain = "state_plain";
-    private final static String field_sending_method = "sending_method";
-    private final static String field_sender = "sender";
-    private final static String field_receiver = "receiver";
-    private final static String field_is_ack = "is_ack";
-    private final static String field_acked_id = "acked_id";
-    private final static String field_when_created = "when_created";
-    private final static String field_when_acked = "when_acked";
-    private final static String field_text = "text";
+    // "state_plain" exists just for usability if the user checks contents via console.
+    // It and "sending_method" are the "debug columns", see SchemaMode.
+
+    public final static String field_id = "id";
+    public final static String field_state = "state";
+    public final static String field_state_plain = "state_plain";
+    public final static String field_sending_method = "sending_method";
+    public final static String field_sender = "sender";
+    public final static String field_receiver = "receiver";
+    public final static String field_is_ack = "is_ack";
+    public final static String field_acked_id = "acked_id";
+    public final static String field_when_created = "when_created";
+    public final static String field_when_acked = "when_acked";
+    public final static String field_text = "text";
+    public final static String field_has_body = "has_body";
+
+    // The longest text that fits into the message table. Longer texts go to the body table.
+    public final static int maxTextLength = 100;
+
+    // The body table holds the texts longer than "maxTextLength", keyed by message id.
+    // A body is stored as UTF-8 in a BLOB, compressed with "Deflate" if it is "compressed".
+    public final static String tableName_body = "message_bodies";
+    public final static String fqTableName_body = String.format("%s.%s", schemaName, tableName_body);
+    public final static String field_compressed = "compressed";
+    public final static String field_body = "body";
+
+    // ---
+    // The "debug columns" "state_plain" (the state's name) and "sending_method" (the name of
+    // the Db method that inserted the row) are strings that make up a large part of a row.
+    // - Verbose: both columns, as strings. Nice when looking at the table in the H2 console.
+    // - Lean: no "state_plain" (it just repeats "state"), and "sending_method" as the
+    //   SMALLINT code of the SendingMethod.
+    // The mode is chosen in setupDatabase() and must match the existing table if the
+    // table is not recreated.
+    // ---
+
+    public enum SchemaMode {Verbose, Lean}
 
     // ----
     // Consult http://h2database.com/html/datatypes.html
@@ -71,44 +223,214 @@ public class Db {
     // that needs to be trimmed, which is not the case for CHAR (CHARACTER).
     // The documentation says "too short strings are right-padded with space characters"
     //
-    // Note that for real applications and large tables one would add a few indexes.
+    // For large tables, one needs indexes, see createInboxIndex().
     // ----
 
-    private void createTable() {
+    private void createTable(@NotNull Shard shard) {
         final String sqlRaw = "CREATE TABLE IF NOT EXISTS "
                 + fqTableName_message
                 + " ("
-                + field_id + " INTEGER AUTO_INCREMENT PRIMARY KEY, "
-                + field_state + " INTEGER NOT NULL, "
-                + field_state_plain + " VARCHAR(20) NOT NULL, " // state name; for easier manual debugging
-                + field_sending_method + " VARCHAR(100) NOT NULL, " // register which Java method was used to insert; for manual debugging
+                + field_id + " INTEGER GENERATED BY DEFAULT AS IDENTITY (START WITH " + (shard.index() + 1) + " INCREMENT BY " + shards.size() + ") PRIMARY KEY, "
+                + buildSql_columnsAfterId(statements.mode())
+                + ")";
+        shard.jdbcTemplate().execute(sqlRaw);
+    }
+
+    // ---
+    // The archive table has the same columns as the message table, but the "id" is just
+    // copied over. Messages are purged from the archive by "when_acked", hence the index.
+    // ---
+
+    private void createArchiveTable(@NotNull Shard shard) {
+        final String sqlRaw = "CREATE TABLE IF NOT EXISTS "
+                + fqTableName_archive
+                + " ("
+                + field_id + " INTEGER PRIMARY KEY, "
+                + buildSql_columnsAfterId(statements.mode())
+                + ")";
+        shard.jdbcTemplate().execute(sqlRaw);
+        shard.jdbcTemplate().execute("CREATE INDEX IF NOT EXISTS "
+                + schemaName + "." + indexName_archive
+                + " ON "
+                + fqTableName_archive
+                + " ("
+                + field_when_acked
+                + ")");
+    }
+
+    public final static String indexName_archive = "messages_archive_acked_idx";
+
+    // ---
+    // The body table. It is only read by message id, when a body is asked for.
+    // It serves both the message table and the archive table: a message's body stays where
+    // it is when the message is archived, and goes away when the message is purged.
+    // https://h2database.com/html/datatypes.html#binary_large_object_type
+    // ---
+
+    private void createBodyTable(@NotNull Shard shard) {
+        final String sqlRaw = "CREATE TABLE IF NOT EXISTS "
+                + fqTableName_body
+                + " ("
+                + field_id + " INTEGER PRIMARY KEY, "
+                + field_compressed + " BOOLEAN NOT NULL, "
+                + field_body + " BLOB NOT NULL"
+                + ")";
+        shard.jdbcTemplate().execute(sqlRaw);
+    }
+
+    private static String buildSql_columnsAfterId(@NotNull SchemaMode mode) {
+        return field_state + " INTEGER NOT NULL, "
+                + switch (mode) {
+                    case Verbose -> field_state_plain + " VARCHAR(20) NOT NULL, " // state name; for easier manual debugging
+                            + field_sending_method + " VARCHAR(100) NOT NULL, "; // register which Java method was used to insert; for manual debugging
+                    case Lean -> field_sending_method + " SMALLINT NOT NULL, "; // SendingMethod code
+                }
                 + field_sender + " INTEGER NOT NULL, "
                 + field_receiver + " INTEGER NOT NULL, "
                 + field_is_ack + " BOOLEAN NOT NULL, "
                 + field_acked_id + " INTEGER DEFAULT NULL, " // set for "ack messages" but not for "true messages"
                 + field_when_created + " TIMESTAMP(3) WITH TIME ZONE NOT NULL, " // meaningful "instant" demands timezone info!
                 + field_when_acked + " TIMESTAMP(3) WITH TIME ZONE DEFAULT NULL, " // meaningful "instant" demands timezone info!
-                + field_text + " VARCHAR(100) NOT NULL"
+                + field_text + " VARCHAR(" + maxTextLength + ") NOT NULL, " // the text, or the beginning of the body
+                + field_has_body + " BOOLEAN DEFAULT FALSE NOT NULL"; // the text is in the body table
+    }
+
+    // ---
+    // Every poll by every agent selects on "receiver" and "state", so without an index
+    // every poll is a full table scan. The composite index covers both, and "id" as third
+    // column makes the index deliver a receiver's messages in "id" order, which is the order
+    // used by retrieveMsgs().
+    // https://h2database.com/html/commands.html#create_index
+    // ---
+
+    public final static String indexName_inbox = "messages_inbox_idx";
+
+    private void createInboxIndex(@NotNull Shard shard) {
+        final String sqlRaw = "CREATE INDEX IF NOT EXISTS "
+                + schemaName + "." + indexName_inbox
+                + " ON "
+                + fqTableName_message
+                + " ("
+                + field_receiver + ","
+                + field_state + ","
+                + field_id
                 + ")";
-        jdbcTemplate.execute(sqlRaw);
+        shard.jdbcTemplate().execute(sqlRaw);
+    }
+
+    // ---
+    // Install InboxTrigger on the message table, so that InboxNotificationHub is told about
+    // every new message. This is not part of setupDatabase() because it only makes sense
+    // if H2 runs embedded in this JVM. With an H2 server, the trigger class would have to be
+    // on the server's classpath, and it would ring the doorbells in the server's JVM.
+    // ---
+
+    public final static String triggerName_inbox = "messages_inbox_trg";
+
+    public void installInboxTrigger() {
+        final String sqlRaw = "CREATE TRIGGER IF NOT EXISTS "
+                + schemaName + "." + triggerName_inbox
+                + " AFTER INSERT ON "
+                + fqTableName_message
+                + " FOR EACH ROW CALL '"
+                + InboxTrigger.class.getName()
+                + "'";
+        shards.forEach(shard -> shard.jdbcTemplate().execute(sqlRaw));
     }
 
     // ---
     // "cleanup" indicates whether the tables and the schema should bd dropped when the
     // test finishes. If you run a volatile database (in-memory), there is no need to clean
     // up. If you want to inspect results later, you may not want to clean up.
+    // All of this is done on each shard. Finally, the backlog counters are loaded.
+    // Once the table exists, the SimpleJdbcInsert is compiled so that the metadata
+    // lookup does not happen on the first send. Recreating the table later is fine
+    // as long as its columns do not change, i.e. as long as the schema mode stays the same.
+    // Switching the schema mode needs "cleanupFirst", and nothing else may use this Db meanwhile.
     // ---
 
     public void setupDatabase(boolean cleanupFirst) {
-        if (cleanupFirst) {
-            DbHelpers.dropSchemaIfExists(schemaName, DbHelpers.Cascade.Yes, jdbcTemplate);
+        setupDatabase(cleanupFirst, SchemaMode.Verbose);
+    }
+
+    public void setupDatabase(boolean cleanupFirst, @NotNull SchemaMode mode) {
+        statements = statementsOf(mode);
+        for (Shard shard : shards) {
+            if (cleanupFirst) {
+                DbHelpers.dropSchemaIfExists(schemaName, DbHelpers.Cascade.Yes, shard.jdbcTemplate());
+            }
+            DbHelpers.createSchema(schemaName, shard.jdbcTemplate());
+            createTable(shard);
+            createInboxIndex(shard);
+            createArchiveTable(shard);
+            createBodyTable(shard);
+            shard.insert_msg(mode).compile();
         }
-        DbHelpers.createSchema(schemaName, jdbcTemplate);
-        createTable();
+        reconcileBacklogCounters(true);
+    }
+
+    // ---
+    // Statement registry, static part.
+    // The SQL texts are built once, at class initialization, by the "buildSql_" methods.
+    // The hot paths only ever use these fields.
+    // The statements that write the debug columns exist once per schema mode, in a
+    // "Statements" record. The record in use is in "statements", set by setupDatabase().
+    // ---
+
+    private record Statements(@NotNull SchemaMode mode,
+                              @NotNull String sendMsg,
+                              @NotNull String ackMsg,
+                              @NotNull String claimMsgs,
+                              @NotNull String processMsgs,
+                              @NotNull String ackClaimedMsgs,
+                              @NotNull String unclaimMsgs,
+                              @NotNull String sendAckMsg,
+                              @NotNull String sendMsgWithBody,
+                              @NotNull String copyToArchive) {
+
+        static @NotNull Statements build(@NotNull SchemaMode mode) {
+            return new Statements(mode,
+                    buildSql_sendMsg(mode, false),
+                    buildSql_ackMsg(mode),
+                    buildSql_claimMsgs(mode, false),
+                    buildSql_claimMsgs(mode, true),
+                    buildSql_ackClaimedMsgs(mode),
+                    buildSql_unclaimMsgs(mode),
+                    buildSql_sendAckMsg(mode),
+                    buildSql_sendMsg(mode, true),
+                    buildSql_copyToArchive(mode));
+        }
+    }
+
+    private final static Statements statements_verbose = Statements.build(SchemaMode.Verbose);
+    private final static Statements statements_lean = Statements.build(SchemaMode.Lean);
+
+    private volatile @NotNull Statements statements = statements_verbose;
+
+    private static @NotNull Statements statementsOf(@NotNull SchemaMode mode) {
+        return (mode == SchemaMode.Verbose) ? statements_verbose : statements_lean;
     }
 
+    private final static String sql_countMsgs = buildSql_CountMsgs();
+    private final static String sql_countAllMsgs = "SELECT COUNT(*) AS x FROM " + fqTableName_message;
+    private final static String sql_retrieveMsgs = buildSql_retrieveMsgs(false);
+    private final static String sql_retrieveMsgsPage = buildSql_retrieveMsgs(true);
+    private final static String sql_selectArchivableIds = buildSql_selectArchivableIds();
+    private final static String sql_deleteArchived = buildSql_deleteArchived();
+    private final static String sql_selectPurgeableIds = buildSql_selectPurgeableIds();
+    private final static String sql_deletePurged = buildSql_deleteByIds(fqTableName_archive);
+    private final static String sql_deleteBodies = buildSql_deleteByIds(fqTableName_body);
+    private final static String sql_insertBody = buildSql_insertBody();
+    private final static String sql_readBody = buildSql_readBody();
+    private final static String sql_countBacklogs = buildSql_countBacklogs();
+    private final static String sql_countArchivedMsgs = "SELECT COUNT(*) AS x FROM " + fqTableName_archive;
+    private final static String sql_ackLatencyHistogram = buildSql_ackLatencyHistogram();
+    private final static String sql_throughputPerBucket = buildSql_throughputPerBucket();
+    private final static String sql_backlogAges = buildSql_backlogAges();
+    private final static String sql_processAndAck = buildSql_processAndAck();
+
     // ---
-    // Does what it says. Result should be assigned once to s static final.
+    // Does what it says. Result is assigned once to a static final.
     // ---
 
     private static String buildSql_CountMsgs() {
@@ -125,48 +447,146 @@ public class Db {
     // ---
 
     public int countMsgs(@NotNull AgentId receiver, @NotNull MsgState msgState) {
-        final List<Integer> counts = jdbcTemplate.query(
-                buildSql_CountMsgs(),
-                Db::rowMapper_x,
-                receiver.getRaw(),
-                msgState.getRaw());
-        assert counts.size() == 1;
-        assert counts.get(0) >= 0;
-        return counts.get(0);
+        return metrics.time(Operation.countMsgs, null, () -> {
+            final List<Integer> counts = shardOf(receiver).jdbcTemplate().query(
+                    sql_countMsgs,
+                    ps -> bindReceiverAndState(ps, receiver, msgState),
+                    Db::rowMapper_x);
+            assert counts.size() == 1;
+            assert counts.get(0) >= 0;
+            return counts.get(0);
+        }, count -> 1);
+    }
+
+    // ---
+    // The number of messages sent to a certain agent in state "fresh" or "claimed", as given
+    // by the backlog counters. Same result as countMsgs(), but no database access.
+    // ---
+
+    @Override
+    public long countBacklog(@NotNull AgentId receiver, @NotNull MsgState msgState) {
+        return backlogCounters.get(receiver, msgState);
+    }
+
+    // ---
+    // Count all the messages, over all shards
+    // ---
+
+    @Override
+    public long countAllMsgs() {
+        return metrics.time(Operation.countAllMsgs, null, () -> {
+            long res = 0;
+            for (Shard shard : shards) {
+                final Integer count = shard.jdbcTemplate().queryForObject(sql_countAllMsgs, Db::rowMapper_x);
+                assert count != null;
+                res += count;
+            }
+            return res;
+        }, count -> shards.size());
+    }
+
+    // ---
+    // Index-based binder for "sql_countMsgs" and "sql_retrieveMsgs"
+    // ---
+
+    private static void bindReceiverAndState(@NotNull PreparedStatement ps, @NotNull AgentId receiver, @NotNull MsgState msgState) throws SQLException {
+        ps.setInt(1, receiver.getRaw());
+        ps.setInt(2, msgState.getRaw());
     }
 
     private static Integer rowMapper_x(@NotNull ResultSet row, int rowNum) throws SQLException {
         return row.getInt("x");
     }
 
-    private static Map<String, Object> makeMapForMsg(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text, @NotNull String sendingMethod) {
+    private static Map<String, Object> makeMapForMsg(@NotNull SchemaMode mode, @NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text, @NotNull SendingMethod sendingMethod) {
         final Map<String, Object> res = new HashMap<>();
         res.put(field_state, MsgState.fresh.getRaw());
-        res.put(field_state_plain, MsgState.fresh.toString());
-        res.put(field_sending_method, sendingMethod);
+        putDebugColumns(res, mode, MsgState.fresh, sendingMethod);
         res.put(field_sender, sender.getRaw());
         res.put(field_receiver, receiver.getRaw());
         res.put(field_is_ack, false);
         res.put(field_when_created, createdWhen); // Instant mapped "as is" to "TIMESTAMP WITH TIME ZONE". It works!
         res.put(field_text, text);
+        res.put(field_has_body, false); // SimpleJdbcInsert would insert NULL instead of the default
         return res;
     }
 
+    // ---
+    // The debug columns (see SchemaMode), for SimpleJdbcInsert, for "index"-based binding
+    // and for the SQL texts. The columns come right after "state", in this order.
+    // ---
+
+    private static void putDebugColumns(@NotNull Map<String, Object> map, @NotNull SchemaMode mode, @NotNull MsgState msgState, @NotNull SendingMethod sendingMethod) {
+        switch (mode) {
+            case Verbose -> {
+                map.put(field_state_plain, msgState.toString());
+                map.put(field_sending_method, sendingMethod.toString());
+            }
+            case Lean -> map.put(field_sending_method, sendingMethod.getCode());
+        }
+    }
+
+    // Returns the index of the next parameter
+
+    private static int bindDebugColumns(@NotNull PreparedStatement ps, int index, @NotNull SchemaMode mode, @NotNull MsgState msgState, @NotNull SendingMethod sendingMethod) throws SQLException {
+        switch (mode) {
+            case Verbose -> {
+                ps.setString(index++, msgState.toString());
+                ps.setString(index++, sendingMethod.toString());
+            }
+            case Lean -> ps.setShort(index++, sendingMethod.getCode());
+        }
+        return index;
+    }
+
+    // Returns the index of the next parameter
+
+    private static int bindStatePlain(@NotNull PreparedStatement ps, int index, @NotNull SchemaMode mode, @NotNull MsgState msgState) throws SQLException {
+        if (mode == SchemaMode.Verbose) {
+            ps.setString(index++, msgState.toString());
+        }
+        return index;
+    }
+
+    // Column list, with trailing comma
+
+    private static String buildSql_debugColumns(@NotNull SchemaMode mode) {
+        return switch (mode) {
+            case Verbose -> field_state_plain + "," + field_sending_method + ",";
+            case Lean -> field_sending_method + ",";
+        };
+    }
+
+    // Placeholders for the column list, with trailing comma
+
+    private static String buildSql_debugPlaceholders(@NotNull SchemaMode mode) {
+        return switch (mode) {
+            case Verbose -> "?,?,";
+            case Lean -> "?,";
+        };
+    }
+
+    // Assignment in the SET part of an UPDATE that changes the state, with trailing comma
+
+    private static String buildSql_setStatePlain(@NotNull SchemaMode mode) {
+        return (mode == SchemaMode.Verbose) ? field_state_plain + " = ?, " : "";
+    }
+
     // ---
     // Inserting a single "fresh" message.
     // Uses SimpleJdbcInsert, does not return id.
     // ---
 
     public void sendMsgWithSimpleJdbc(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
-        final Map<String, Object> values = Db.makeMapForMsg(createdWhen, sender, receiver, text, "sendMsgWithSimpleJdbc");
-        final int count = new SimpleJdbcInsert(jdbcTemplate)
-                .withSchemaName(schemaName)
-                .withTableName(tableName_message)
-                .usingGeneratedKeyColumns(field_id)
-                .execute(values);
-        if (count != 1) {
-            throw new IllegalStateException("Insertion count is " + count + " instead of 1");
-        }
+        metrics.time(Operation.send, SendingMethod.sendMsgWithSimpleJdbc, 1, () -> {
+            final SchemaMode mode = statements.mode();
+            final Map<String, Object> values = Db.makeMapForMsg(mode, createdWhen, sender, receiver, text, SendingMethod.sendMsgWithSimpleJdbc);
+            final int count = shardOf(receiver).insert_msg(mode).execute(values);
+            if (count != 1) {
+                throw new IllegalStateException("Insertion count is " + count + " instead of 1");
+            }
+            countAfterCommit(() -> backlogCounters.add(receiver, MsgState.fresh, 1));
+        });
     }
 
     // ---
@@ -175,33 +595,39 @@ public class Db {
     // ---
 
     public MsgId sendMsgWithSimpleJdbcReturningId(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
-        final Map<String, Object> values = Db.makeMapForMsg(createdWhen, sender, receiver, text, "sendMsgWithSimpleJdbcReturningId");
-        final Number id = new SimpleJdbcInsert(jdbcTemplate)
-                .withSchemaName(schemaName)
-                .withTableName(tableName_message)
-                .usingGeneratedKeyColumns(field_id)
-                .executeAndReturnKey(values);
-        return new MsgId(id.intValue());
+        return metrics.time(Operation.send, SendingMethod.sendMsgWithSimpleJdbcReturningId, () -> {
+            final SchemaMode mode = statements.mode();
+            final Map<String, Object> values = Db.makeMapForMsg(mode, createdWhen, sender, receiver, text, SendingMethod.sendMsgWithSimpleJdbcReturningId);
+            final Number id = shardOf(receiver).insert_msg(mode).executeAndReturnKey(values);
+            countAfterCommit(() -> backlogCounters.add(receiver, MsgState.fresh, 1));
+            return new MsgId(id.intValue());
+        }, msgId -> 1);
     }
 
     // ---
-    // Does what it says. Result should be assigned once to s static final.
+    // Does what it says. Result is assigned once per schema mode to a static final.
+    // With "withBody", the "has_body" flag is set by the caller; otherwise it is left
+    // at its default, false.
     // ---
 
-    private static String buildSql_sendMsg() {
+    private static String buildSql_sendMsg(@NotNull SchemaMode mode, boolean withBody) {
         return "INSERT INTO "
                 + fqTableName_message
                 + " ("
                 + field_state + ","
-                + field_state_plain + ","
-                + field_sending_method + ","
+                + buildSql_debugColumns(mode)
                 + field_sender + ","
                 + field_receiver + ","
                 + field_is_ack + ","
                 + field_when_created + ","
                 + field_text
+                + (withBody ? "," + field_has_body : "")
                 + " ) "
-                + " VALUES (?,?,?,?,?,?,?,?)";
+                + " VALUES (?,"
+                + buildSql_debugPlaceholders(mode)
+                + "?,?,?,?,?"
+                + (withBody ? ",?" : "")
+                + ")";
     }
 
     // ---
@@ -210,29 +636,35 @@ public class Db {
     // ---
 
     public void sendMsgWithJdbcTemplate(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
-        final int count = jdbcTemplate.update(
-                buildSql_sendMsg(),
-                MsgState.fresh.getRaw(),
-                MsgState.fresh.toString(),
-                "sendMsgWithJdbcTemplate",
-                sender.getRaw(),
-                receiver.getRaw(),
-                false,
-                createdWhen, // Instant is correctly mapped to "TIMESTAMP WITH TIME ZONE" by driver. BIG WIN!
-                text);
-        if (count != 1) {
-            throw new IllegalStateException("Insertion count is " + count + " instead of 1");
-        }
+        metrics.time(Operation.send, SendingMethod.sendMsgWithJdbcTemplate, 1, () -> {
+            final int count = shardOf(receiver).jdbcTemplate().update(
+                    statements.sendMsg(),
+                    ps -> bindFreshMsg(ps, statements.mode(), createdWhen, sender, receiver, text, SendingMethod.sendMsgWithJdbcTemplate));
+            if (count != 1) {
+                throw new IllegalStateException("Insertion count is " + count + " instead of 1");
+            }
+            countAfterCommit(() -> backlogCounters.add(receiver, MsgState.fresh, 1));
+        });
     }
 
     // ---
     // Experiment with different ways of getting a "java.util.Instant" into the database.
+    // The way is chosen with setInstantBinding(); it is "AsObject" unless changed, which is the
+    // only one that is correct in all cases. The others are kept for comparison, e.g. by the
+    // JMH benchmarks.
     // ---
 
-    private static void injectInstantExperimentally(int index, @NotNull Instant createdWhen, @NotNull PreparedStatement ps) throws SQLException {
-        final int which = 2; // yeah, use this
-        switch (which) {
-            case 0 -> {
+    public enum InstantBinding {AsTimestampWithCalendar, AsIsoString, AsObject}
+
+    private volatile @NotNull InstantBinding instantBinding = InstantBinding.AsObject;
+
+    public void setInstantBinding(@NotNull InstantBinding instantBinding) {
+        this.instantBinding = instantBinding;
+    }
+
+    private static void injectInstantExperimentally(int index, @NotNull Instant createdWhen, @NotNull PreparedStatement ps, @NotNull InstantBinding binding) throws SQLException {
+        switch (binding) {
+            case AsTimestampWithCalendar -> {
                 // NOT WORKING PROPERLY!!
                 // https://docs.oracle.com/en/java/javase/17/docs/api/java.sql/java/sql/Timestamp.html
                 // https://docs.oracle.com/en/java/javase/17/docs/api/java.sql/java/sql/PreparedStatement.html#setTimestamp(int,java.sql.Timestamp,java.util.Calendar)
@@ -245,11 +677,11 @@ public class Db {
                 Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("America/Shiprock"));
                 ps.setTimestamp(index, Timestamp.from(createdWhen), cal);
             }
-            case 1 -> {
+            case AsIsoString -> {
                 // Doing the roundabout way of passing a string actually works!
                 ps.setString(index, DateTimeFormatter.ISO_INSTANT.format(createdWhen));
             }
-            case 2 -> {
+            case AsObject -> {
                 // Directly setting an "Instant" object works too. BIG WIN. Excellent.
                 ps.setObject(index, createdWhen);
             }
@@ -263,39 +695,244 @@ public class Db {
     // ---
 
     public MsgId sendMsgWithJdbcTemplateReturningId(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
-        final KeyHolder keyHolder = new GeneratedKeyHolder();
-        int count = jdbcTemplate.update(conn -> {
-            PreparedStatement ps = conn.prepareStatement(buildSql_sendMsg(), Statement.RETURN_GENERATED_KEYS);
-            int index = 1; // start at 1 not 0
-            ps.setInt(index++, MsgState.fresh.getRaw());
-            ps.setString(index++, MsgState.fresh.toString());
-            ps.setString(index++, "sendMsgWithJdbcTemplateReturningId");
-            ps.setInt(index++, sender.getRaw());
-            ps.setInt(index++, receiver.getRaw());
-            ps.setBoolean(index++, false); // "not an ACK"
-            // >>> trying various things!
-            injectInstantExperimentally(index++, createdWhen, ps);
-            // <<<
-            ps.setString(index, text);
-            return ps;
-        }, keyHolder);
-        if (count != 1) {
-            throw new IllegalStateException("Insertion count is " + count + " instead of 1");
-        }
-        final Integer rawKey = keyHolder.getKeyAs(Integer.class);
-        if (rawKey == null) {
-            throw new IllegalStateException("Did not obtain a valid key");
-        }
-        return new MsgId(rawKey);
+        return metrics.time(Operation.send, SendingMethod.sendMsgWithJdbcTemplateReturningId, () -> {
+            final KeyHolder keyHolder = new GeneratedKeyHolder();
+            int count = shardOf(receiver).jdbcTemplate().update(conn -> {
+                PreparedStatement ps = conn.prepareStatement(statements.sendMsg(), Statement.RETURN_GENERATED_KEYS);
+                int index = 1; // start at 1 not 0
+                ps.setInt(index++, MsgState.fresh.getRaw());
+                index = bindDebugColumns(ps, index, statements.mode(), MsgState.fresh, SendingMethod.sendMsgWithJdbcTemplateReturningId);
+                ps.setInt(index++, sender.getRaw());
+                ps.setInt(index++, receiver.getRaw());
+                ps.setBoolean(index++, false); // "not an ACK"
+                // >>> trying various things!
+                injectInstantExperimentally(index++, createdWhen, ps, instantBinding);
+                // <<<
+                ps.setString(index, text);
+                return ps;
+            }, keyHolder);
+            if (count != 1) {
+                throw new IllegalStateException("Insertion count is " + count + " instead of 1");
+            }
+            final Integer rawKey = keyHolder.getKeyAs(Integer.class);
+            if (rawKey == null) {
+                throw new IllegalStateException("Did not obtain a valid key");
+            }
+            countAfterCommit(() -> backlogCounters.add(receiver, MsgState.fresh, 1));
+            return new MsgId(rawKey);
+        }, msgId -> 1);
+    }
+
+    // ---
+    // Inserting several "fresh" messages in a single JDBC batch (one per shard concerned).
+    // Uses SimpleJdbcInsert, does not return ids.
+    // ---
+
+    public void sendMsgsWithSimpleJdbc(@NotNull List<MsgToSend> msgs) {
+        metrics.time(Operation.send, SendingMethod.sendMsgsWithSimpleJdbc, msgs.size(), () -> {
+            if (msgs.isEmpty()) {
+                return;
+            }
+            final SchemaMode mode = statements.mode();
+            final List<List<Integer>> positions = positionsByShard(msgs, MsgToSend::receiver);
+            for (Shard shard : shards) {
+                final List<Integer> shardPositions = positions.get(shard.index());
+                if (!shardPositions.isEmpty()) {
+                    final SqlParameterSource[] batch = new SqlParameterSource[shardPositions.size()];
+                    int index = 0;
+                    for (int pos : shardPositions) {
+                        final MsgToSend msg = msgs.get(pos);
+                        batch[index++] = new MapSqlParameterSource(
+                                Db.makeMapForMsg(mode, msg.createdWhen(), msg.sender(), msg.receiver(), msg.text(), SendingMethod.sendMsgsWithSimpleJdbc));
+                    }
+                    final int[] counts = shard.insert_msg(mode).executeBatch(batch);
+                    checkBatchCounts(counts, batch.length);
+                }
+            }
+            countAfterCommit(() -> msgs.forEach(msg -> backlogCounters.add(msg.receiver(), MsgState.fresh, 1)));
+        });
+    }
+
+    // ---
+    // Inserting several "fresh" messages in a single JDBC batch.
+    // Uses JDBCTemplate, returns the ids in the order of the passed messages.
+    // If the connection is in auto-commit mode (i.e. we are not inside a Spring transaction),
+    // the whole batch is committed once at the end instead of once per row.
+    // ---
+
+    public @NotNull List<MsgId> sendMsgsWithJdbcTemplateReturningIds(@NotNull List<MsgToSend> msgs) {
+        return metrics.time(Operation.send, SendingMethod.sendMsgsWithJdbcTemplateReturningIds, () -> {
+            final List<MsgId> res = batchInsertReturningIds(statements.sendMsg(), msgs, MsgToSend::receiver, (ps, msg) ->
+                    bindFreshMsg(ps, statements.mode(), msg.createdWhen(), msg.sender(), msg.receiver(), msg.text(), SendingMethod.sendMsgsWithJdbcTemplateReturningIds));
+            countAfterCommit(() -> msgs.forEach(msg -> backlogCounters.add(msg.receiver(), MsgState.fresh, 1)));
+            return res;
+        }, List::size);
+    }
+
+    // ---
+    // MessageStore implementation: the batch send that returns ids
+    // ---
+
+    @Override
+    public @NotNull List<MsgId> sendMsgs(@NotNull List<MsgToSend> msgs) {
+        return sendMsgsWithJdbcTemplateReturningIds(msgs);
+    }
+
+    // ---
+    // Sets the parameters of a prepared statement from an item, by index.
+    // Like Spring's "PreparedStatementSetter", but for one item of a batch.
+    // ---
+
+    private interface BatchItemBinder<T> {
+        void bind(@NotNull PreparedStatement ps, @NotNull T item) throws SQLException;
+    }
+
+    // ---
+    // For each shard, the positions in "items" of the items that go to that shard.
+    // ---
+
+    private <T> List<List<Integer>> positionsByShard(@NotNull List<T> items, @NotNull Function<T, AgentId> receiverOf) {
+        final List<List<Integer>> res = new ArrayList<>(shards.size());
+        shards.forEach(shard -> res.add(new ArrayList<>()));
+        for (int pos = 0; pos < items.size(); pos++) {
+            res.get(shardOf(receiverOf.apply(items.get(pos))).index()).add(pos);
+        }
+        return res;
+    }
+
+    // ---
+    // Run "sql" as one JDBC batch per shard concerned, and return the generated ids in
+    // the order of the items. "receiverOf" gives the receiver of the message inserted for an item.
+    // The shards are written one after the other, with one commit each (if not inside a
+    // Spring transaction, see below).
+    // ---
+
+    private <T> List<MsgId> batchInsertReturningIds(@NotNull String sql, @NotNull List<T> items, @NotNull Function<T, AgentId> receiverOf, @NotNull BatchItemBinder<T> binder) {
+        if (items.isEmpty()) {
+            return List.of();
+        }
+        if (shards.size() == 1) {
+            return batchInsertReturningIds(shards.get(0), sql, items, binder);
+        }
+        final MsgId[] res = new MsgId[items.size()];
+        final List<List<Integer>> positions = positionsByShard(items, receiverOf);
+        for (Shard shard : shards) {
+            final List<Integer> shardPositions = positions.get(shard.index());
+            if (!shardPositions.isEmpty()) {
+                final List<T> shardItems = shardPositions.stream().map(items::get).toList();
+                final List<MsgId> ids = batchInsertReturningIds(shard, sql, shardItems, binder);
+                for (int i = 0; i < shardPositions.size(); i++) {
+                    res[shardPositions.get(i)] = ids.get(i);
+                }
+            }
+        }
+        return List.of(res);
+    }
+
+    // ---
+    // Run "sql" on "shard" as a single JDBC batch, with one batch element per item, and return the
+    // generated ids in the order of the items. The batch is committed once, see inOneCommit().
+    // ---
+
+    private <T> List<MsgId> batchInsertReturningIds(@NotNull Shard shard, @NotNull String sql, @NotNull List<T> items, @NotNull BatchItemBinder<T> binder) {
+        final List<MsgId> res = inOneCommit(shard, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                for (T item : items) {
+                    binder.bind(ps, item);
+                    ps.addBatch();
+                }
+                checkBatchCounts(ps.executeBatch(), items.size());
+                // H2 hands out the generated keys of the whole batch, in batch order
+                final List<MsgId> ids = new ArrayList<>(items.size());
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        ids.add(new MsgId(keys.getInt(1)));
+                    }
+                }
+                if (ids.size() != items.size()) {
+                    throw new IllegalStateException("Obtained " + ids.size() + " keys instead of " + items.size());
+                }
+                return ids;
+            }
+        });
+        assert res != null;
+        return Collections.unmodifiableList(res);
+    }
+
+    // ---
+    // Run "action" on a connection of "shard" so that all it does is committed once, at the end.
+    // If the connection is in auto-commit mode (i.e. we are not inside a Spring transaction),
+    // auto-commit is switched off for the duration of "action", then there is a single commit,
+    // or a rollback if "action" fails. Inside a Spring transaction, the connection is the
+    // transaction's, and committing is left to Spring.
+    // ---
+
+    private <R> R inOneCommit(@NotNull Shard shard, @NotNull ConnectionCallback<R> action) {
+        return shard.jdbcTemplate().execute((Connection conn) -> {
+            final boolean autoCommit = conn.getAutoCommit();
+            if (autoCommit) {
+                conn.setAutoCommit(false);
+            }
+            try {
+                final R res = action.doInConnection(conn);
+                if (autoCommit) {
+                    conn.commit();
+                }
+                return res;
+            } catch (SQLException | RuntimeException ex) {
+                if (autoCommit) {
+                    conn.rollback();
+                }
+                throw ex;
+            } finally {
+                if (autoCommit) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        });
+    }
+
+    // ---
+    // Index-based binder for "sendMsg". Setting the parameters by index with typed
+    // setters spares JdbcTemplate from inspecting the type of each vararg on every call.
+    // Returns the index of the next parameter.
+    // ---
+
+    private static int bindFreshMsg(@NotNull PreparedStatement ps, @NotNull SchemaMode mode, @NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text, @NotNull SendingMethod sendingMethod) throws SQLException {
+        int index = 1; // start at 1 not 0
+        ps.setInt(index++, MsgState.fresh.getRaw());
+        index = bindDebugColumns(ps, index, mode, MsgState.fresh, sendingMethod);
+        ps.setInt(index++, sender.getRaw());
+        ps.setInt(index++, receiver.getRaw());
+        ps.setBoolean(index++, false); // "not an ACK"
+        ps.setObject(index++, createdWhen); // Instant is correctly mapped to "TIMESTAMP WITH TIME ZONE" by driver. BIG WIN!
+        ps.setString(index++, text);
+        return index;
+    }
+
+    // ---
+    // The driver may return "SUCCESS_NO_INFO" instead of an actual count for batch elements
+    // ---
+
+    private static void checkBatchCounts(int[] counts, int expectedLength) {
+        if (counts.length != expectedLength) {
+            throw new IllegalStateException("Batch count array has length " + counts.length + " instead of " + expectedLength);
+        }
+        for (int count : counts) {
+            if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                throw new IllegalStateException("Insertion count is " + count + " instead of 1");
+            }
+        }
     }
 
     // ---
     // Transforming raw data from a ResultSet to an actual message instance.
     // This method maps to a Spring "RowMapper" functional interface.
     // https://docs.spring.io/spring-framework/docs/current/javadoc-api/org/springframework/jdbc/core/RowMapper.html
+    // It is not static, as a TrueMsg with a body gets a loader that calls back into this Db.
     // ---
 
-    private static MsgBase rowMapper_msg(@NotNull ResultSet row, int rowNum) throws SQLException {
+    private MsgBase rowMapper_msg(@NotNull ResultSet row, int rowNum) throws SQLException {
         final MsgId msgId = new MsgId(row.getInt(field_id));
         final MsgState msgState = MsgState.byCode(row.getInt(field_state));
         final AgentId sender = new AgentId(row.getInt(field_sender));
@@ -308,15 +945,74 @@ public class Db {
             // "text" is a VARCHAR so there is no superfluous whitespace that needs to be trimmed!
             // This is not the case with CHAR.
             final String text = row.getString(field_text);
-            return new TrueMsg(msgId, msgState, sender, receiver, text);
+            if (row.getBoolean(field_has_body)) {
+                // the body is only read if and when someone asks for it
+                return new TrueMsg(msgId, msgState, sender, receiver, text, () -> readBody(receiver, msgId));
+            } else {
+                return new TrueMsg(msgId, msgState, sender, receiver, text);
+            }
+        }
+    }
+
+    // ---
+    // The same as rowMapper_msg(), but reading the columns by index, resolved once per
+    // ResultSet (see IndexedRowMapperFactory). "col_..." are positions in "columns_msg".
+    // This is what msgMapper() hands out, unless switched to "ByName" for comparison
+    // (see setColumnLookup()).
+    // ---
+
+    private final static List<String> columns_msg = List.of(field_id, field_state, field_sender, field_receiver, field_is_ack, field_acked_id, field_text, field_has_body);
+    private final static int col_id = 0;
+    private final static int col_state = 1;
+    private final static int col_sender = 2;
+    private final static int col_receiver = 3;
+    private final static int col_is_ack = 4;
+    private final static int col_acked_id = 5;
+    private final static int col_text = 6;
+    private final static int col_has_body = 7;
+
+    private MsgBase indexedRowMapper_msg(@NotNull ResultSet row, int @NotNull [] indices) throws SQLException {
+        final MsgId msgId = new MsgId(row.getInt(indices[col_id]));
+        final MsgState msgState = MsgState.byCode(row.getInt(indices[col_state]));
+        final AgentId sender = new AgentId(row.getInt(indices[col_sender]));
+        final AgentId receiver = new AgentId(row.getInt(indices[col_receiver]));
+        if (row.getBoolean(indices[col_is_ack])) {
+            return new AckMsg(msgId, msgState, sender, receiver, new MsgId(row.getInt(indices[col_acked_id])));
+        } else {
+            final String text = row.getString(indices[col_text]);
+            if (row.getBoolean(indices[col_has_body])) {
+                return new TrueMsg(msgId, msgState, sender, receiver, text, () -> readBody(receiver, msgId));
+            } else {
+                return new TrueMsg(msgId, msgState, sender, receiver, text);
+            }
         }
     }
 
+    private final @NotNull IndexedRowMapperFactory<MsgBase> mappers_msg = new IndexedRowMapperFactory<>(columns_msg, this::indexedRowMapper_msg);
+
+    private volatile @NotNull ColumnLookup columnLookup = ColumnLookup.ByIndex;
+
+    public void setColumnLookup(@NotNull ColumnLookup columnLookup) {
+        this.columnLookup = columnLookup;
+    }
+
+    // ---
+    // A RowMapper for one query; not to be shared between threads
+    // ---
+
+    private @NotNull RowMapper<MsgBase> msgMapper() {
+        return (columnLookup == ColumnLookup.ByIndex) ? mappers_msg.newMapper() : this::rowMapper_msg;
+    }
+
     // ---
-    // Does what it says. Result should be assigned once to s static final.
+    // Does what it says. Result is assigned once to a static final.
+    // With "keyset", the query selects a page of at most "?" messages with an id larger than "?".
+    // As the inbox index is on (receiver, state, id), H2 starts reading the index right after
+    // the given id, so the cost of a page does not depend on how far one is into the inbox
+    // (unlike with OFFSET, which reads and discards all the rows before the page).
     // ---
 
-    private static String buildSql_retrieveMsgs() {
+    private static String buildSql_retrieveMsgs(boolean keyset) {
         return "SELECT "
                 + field_id + ","
                 + field_state + ","
@@ -324,38 +1020,121 @@ public class Db {
                 + field_receiver + ","
                 + field_is_ack + ","
                 + field_acked_id + ","
-                + field_text
+                + field_text + ","
+                + field_has_body
                 + " FROM "
                 + fqTableName_message
                 + " WHERE "
                 + field_receiver + " = ? "
                 + " AND "
                 + field_state + " = ? "
+                + (keyset ? " AND " + field_id + " > ? " : "")
                 + " ORDER BY "
-                + field_when_created
-                + " ASC";
+                + field_id
+                + " ASC"
+                + (keyset ? " FETCH FIRST ? ROWS ONLY" : "");
     }
 
     // ---
     // Querying the message table.
+    // Messages are ordered by "id" rather than by "when_created": the "id" is in the inbox index
+    // and is handed out in insertion order. Two messages sent by different agents in the
+    // same millisecond may thus come out in a different order than before, which is of no consequence.
     // Query writing convention when on several lines: whitespace on both ends to be sure there is some!
     // ---
 
     public List<MsgBase> retrieveMsgs(@NotNull AgentId receiver, @NotNull MsgState msgState) {
-        // "state" and "receiver" fields are in the result, so no need to pass then around separately
-        return jdbcTemplate.query(buildSql_retrieveMsgs(), Db::rowMapper_msg, receiver.getRaw(), msgState.getRaw());
+        return metrics.time(Operation.retrieveMsgs, null, () -> {
+            // "state" and "receiver" fields are in the result, so no need to pass then around separately
+            return shardOf(receiver).jdbcTemplate().query(sql_retrieveMsgs, ps -> bindReceiverAndState(ps, receiver, msgState), msgMapper());
+        }, List::size);
+    }
+
+    // ---
+    // Keyset-paginated variant of retrieveMsgs(): retrieve the first page of at most "limit"
+    // messages. Pass the page's continuation token to the next call to get the next page.
+    // ---
+
+    public @NotNull MsgPage retrieveMsgs(@NotNull AgentId receiver, @NotNull MsgState msgState, int limit) {
+        // ids handed out by the identity column start at 1 (or higher, on the other shards)
+        return retrieveMsgs(receiver, msgState, new MsgId(0), limit);
+    }
+
+    // ---
+    // Keyset-paginated variant of retrieveMsgs(): retrieve at most "limit" messages with an id
+    // larger than "afterMsgId", which is generally the continuation token of the previous page.
+    // ---
+
+    public @NotNull MsgPage retrieveMsgs(@NotNull AgentId receiver, @NotNull MsgState msgState, @NotNull MsgId afterMsgId, int limit) {
+        return metrics.time(Operation.retrieveMsgs, null, () -> {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("The limit must be > 0, is " + limit);
+            }
+            final List<MsgBase> msgs = shardOf(receiver).jdbcTemplate().query(sql_retrieveMsgsPage, ps -> {
+                bindReceiverAndState(ps, receiver, msgState);
+                ps.setInt(3, afterMsgId.getRaw());
+                ps.setInt(4, limit);
+            }, msgMapper());
+            final Optional<MsgId> continueAfter = (msgs.size() == limit) ? Optional.of(msgs.get(msgs.size() - 1).getId()) : Optional.empty();
+            return new MsgPage(Collections.unmodifiableList(msgs), continueAfter);
+        }, page -> page.msgs().size());
     }
 
     // ---
-    // Does what it says. Result should be assigned once to s static final.
+    // Streaming variant of retrieveMsgs(): each message is handed to "consumer" as soon as
+    // it has been read, and no list is built. Returns the number of messages handed over.
+    // Memory stays bounded whatever the size of the inbox, because:
+    // - With an H2 server, the driver fetches "fetchSize" rows per round trip.
+    // - With an embedded H2, lazy query execution makes H2 produce rows on demand instead of
+    //   materializing the whole result first. As rows come out of the inbox index in "id"
+    //   order, there is no sort that would need the whole result.
+    //   http://h2database.com/html/commands.html#set_lazy_query_execution
+    // Lazy query execution is a session setting, so it is switched off again before the
+    // connection goes back to the pool.
+    // The consumer runs while the query is open, so it should not take long.
     // ---
 
-    private static String buildSql_ackMsg() {
+    public int forEachMsg(@NotNull AgentId receiver, @NotNull MsgState msgState, int fetchSize, @NotNull Consumer<MsgBase> consumer) {
+        return metrics.time(Operation.forEachMsg, null, () -> {
+            if (fetchSize <= 0) {
+                throw new IllegalArgumentException("The fetch size must be > 0, is " + fetchSize);
+            }
+            final Integer count = shardOf(receiver).jdbcTemplate().execute((Connection conn) -> {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SET LAZY_QUERY_EXECUTION TRUE");
+                }
+                try (PreparedStatement ps = conn.prepareStatement(sql_retrieveMsgs, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setFetchSize(fetchSize);
+                    bindReceiverAndState(ps, receiver, msgState);
+                    final RowMapper<MsgBase> mapper = msgMapper();
+                    int rowNum = 0;
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            consumer.accept(mapper.mapRow(rs, rowNum++));
+                        }
+                    }
+                    return rowNum;
+                } finally {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute("SET LAZY_QUERY_EXECUTION FALSE");
+                    }
+                }
+            });
+            assert count != null;
+            return count;
+        }, count -> count);
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_ackMsg(@NotNull SchemaMode mode) {
         return "UPDATE "
                 + fqTableName_message
                 + " SET "
+                + buildSql_setStatePlain(mode)
                 + field_state + " = ?, "
-                + field_state_plain + " = ?, "
                 + field_when_acked + " = ? "
                 + " WHERE "
                 + field_id + " = ? "
@@ -372,38 +1151,223 @@ public class Db {
     // ---
 
     public void markMsgAsSeen(@NotNull MsgId msgId, @NotNull Instant ackedWhen, @NotNull AgentId receiver) {
-        final int count = jdbcTemplate.update(
-                buildSql_ackMsg(),
-                MsgState.seen.getRaw(), // SET part
-                MsgState.seen.toString(), // SET part
-                ackedWhen, // SET part
-                msgId.getRaw(), // WHERE part
-                MsgState.fresh.getRaw(), // WHERE part
-                receiver.getRaw()); // WHERE part
-        if (count != 1) {
-            throw new IllegalStateException("Trying to acknowledge " + msgId + " resulted in a count of " + count + " instead of 1");
-        }
+        metrics.time(Operation.markMsgAsSeen, null, 1, () -> {
+            final int count = shardOf(receiver).jdbcTemplate().update(statements.ackMsg(), ps -> {
+                int index = bindStatePlain(ps, 1, statements.mode(), MsgState.seen); // SET part
+                ps.setInt(index++, MsgState.seen.getRaw()); // SET part
+                ps.setObject(index++, ackedWhen); // SET part
+                ps.setInt(index++, msgId.getRaw()); // WHERE part
+                ps.setInt(index++, MsgState.fresh.getRaw()); // WHERE part
+                ps.setInt(index, receiver.getRaw()); // WHERE part
+            });
+            if (count != 1) {
+                throw new IllegalStateException("Trying to acknowledge " + msgId + " resulted in a count of " + count + " instead of 1");
+            }
+            countAfterCommit(() -> backlogCounters.move(receiver, MsgState.fresh, MsgState.seen, 1));
+        });
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // This uses an H2 "data change delta table": the UPDATE is run, and the
+    // rows as they are after the UPDATE are returned, all in a single statement.
+    // http://h2database.com/html/grammar.html#data_change_delta_table
+    // The inner SELECT picks the oldest "fresh" messages of the receiver via the inbox index.
+    // The outer WHERE tests the state again: if another consumer claimed a row in the
+    // meantime, H2 re-evaluates the condition once it gets the row lock, and skips the row.
+    // With "toSeen", the messages go straight to "seen" and "when_acked" is set, for
+    // processAndAckInEngine().
+    // ---
+
+    private static String buildSql_claimMsgs(@NotNull SchemaMode mode, boolean toSeen) {
+        return "SELECT "
+                + field_id + ","
+                + field_state + ","
+                + field_sender + ","
+                + field_receiver + ","
+                + field_is_ack + ","
+                + field_acked_id + ","
+                + field_text + ","
+                + field_has_body
+                + " FROM FINAL TABLE ( "
+                + " UPDATE "
+                + fqTableName_message
+                + " SET "
+                + buildSql_setStatePlain(mode)
+                + (toSeen ? field_when_acked + " = ?, " : "")
+                + field_state + " = ? "
+                + " WHERE "
+                + field_state + " = ? "
+                + " AND "
+                + field_id + " IN ( "
+                + " SELECT "
+                + field_id
+                + " FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_receiver + " = ? "
+                + " AND "
+                + field_state + " = ? "
+                + " ORDER BY "
+                + field_id
+                + " FETCH FIRST ? ROWS ONLY "
+                + " ) "
+                + " ) "
+                + " ORDER BY "
+                + field_id
+                + " ASC";
+    }
+
+    // ---
+    // Atomically move up to "maxBatch" "fresh" messages addressed to "receiver" into
+    // state "claimed" and return them, oldest first. This is a single statement.
+    // Two consumers claiming for the same receiver at the same time never get the same message.
+    // The returned messages carry state "claimed".
+    // ---
+
+    @Override
+    public @NotNull List<MsgBase> claimMsgs(@NotNull AgentId receiver, int maxBatch) {
+        return metrics.time(Operation.claimMsgs, null, () -> {
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+            }
+            final List<MsgBase> res = shardOf(receiver).jdbcTemplate().query(statements.claimMsgs(), ps -> {
+                int index = bindStatePlain(ps, 1, statements.mode(), MsgState.claimed); // SET part
+                ps.setInt(index++, MsgState.claimed.getRaw()); // SET part
+                ps.setInt(index++, MsgState.fresh.getRaw()); // WHERE part
+                ps.setInt(index++, receiver.getRaw()); // WHERE part, subquery
+                ps.setInt(index++, MsgState.fresh.getRaw()); // WHERE part, subquery
+                ps.setInt(index, maxBatch); // WHERE part, subquery
+            }, msgMapper());
+            if (!res.isEmpty()) {
+                countAfterCommit(() -> backlogCounters.move(receiver, MsgState.fresh, MsgState.claimed, res.size()));
+            }
+            return res;
+        }, List::size);
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // The ids are passed as a single array parameter, so that the query text does not
+    // depend on the number of ids.
+    // http://h2database.com/html/grammar.html#quantified_comparison_predicate
+    // ---
+
+    private static String buildSql_ackClaimedMsgs(@NotNull SchemaMode mode) {
+        return "UPDATE "
+                + fqTableName_message
+                + " SET "
+                + buildSql_setStatePlain(mode)
+                + field_state + " = ?, "
+                + field_when_acked + " = ? "
+                + " WHERE "
+                + field_id + " = ANY(?) "
+                + " AND "
+                + field_state + " = ? "
+                + " AND "
+                + field_receiver + " = ?";
+    }
+
+    // ---
+    // Changing the state of several messages previously obtained through claimMsgs()
+    // from "CLAIMED" to "SEEN", in a single statement.
+    // ---
+
+    @Override
+    public void markClaimedMsgsAsSeen(@NotNull List<MsgId> msgIds, @NotNull Instant ackedWhen, @NotNull AgentId receiver) {
+        metrics.time(Operation.markClaimedMsgsAsSeen, null, msgIds.size(), () -> {
+            if (msgIds.isEmpty()) {
+                return;
+            }
+            final Integer[] rawIds = msgIds.stream().map(MsgId::getRaw).toArray(Integer[]::new);
+            final int count = shardOf(receiver).jdbcTemplate().update(statements.ackClaimedMsgs(), ps -> {
+                int index = bindStatePlain(ps, 1, statements.mode(), MsgState.seen); // SET part
+                ps.setInt(index++, MsgState.seen.getRaw()); // SET part
+                ps.setObject(index++, ackedWhen); // SET part
+                ps.setObject(index++, rawIds); // WHERE part, H2 maps Integer[] to an ARRAY
+                ps.setInt(index++, MsgState.claimed.getRaw()); // WHERE part
+                ps.setInt(index, receiver.getRaw()); // WHERE part
+            });
+            if (count != msgIds.size()) {
+                throw new IllegalStateException("Trying to acknowledge " + msgIds.size() + " claimed messages resulted in a count of " + count);
+            }
+            countAfterCommit(() -> backlogCounters.move(receiver, MsgState.claimed, MsgState.seen, msgIds.size()));
+        });
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_unclaimMsgs(@NotNull SchemaMode mode) {
+        return "UPDATE "
+                + fqTableName_message
+                + " SET "
+                + buildSql_setStatePlain(mode)
+                + field_state + " = ? "
+                + " WHERE "
+                + field_id + " = ANY(?) "
+                + " AND "
+                + field_state + " = ? "
+                + " AND "
+                + field_receiver + " = ?";
+    }
+
+    // ---
+    // Give messages previously claimed by "receiver" back: move them from "CLAIMED" back to
+    // "FRESH", so that they are claimed again later. For when they cannot be processed now,
+    // e.g. because writing their acks failed (see WriteBehindBuffer).
+    // Messages that are no longer "claimed" are left alone. Returns the number of messages
+    // given back.
+    // ---
+
+    public int unclaimMsgs(@NotNull AgentId receiver, @NotNull List<MsgId> msgIds) {
+        return metrics.time(Operation.unclaimMsgs, null, () -> {
+            if (msgIds.isEmpty()) {
+                return 0;
+            }
+            final Integer[] rawIds = msgIds.stream().map(MsgId::getRaw).toArray(Integer[]::new);
+            final int count = shardOf(receiver).jdbcTemplate().update(statements.unclaimMsgs(), ps -> {
+                int index = bindStatePlain(ps, 1, statements.mode(), MsgState.fresh); // SET part
+                ps.setInt(index++, MsgState.fresh.getRaw()); // SET part
+                ps.setObject(index++, rawIds); // WHERE part, H2 maps Integer[] to an ARRAY
+                ps.setInt(index++, MsgState.claimed.getRaw()); // WHERE part
+                ps.setInt(index, receiver.getRaw()); // WHERE part
+            });
+            countAfterCommit(() -> backlogCounters.move(receiver, MsgState.claimed, MsgState.fresh, count));
+            return count;
+        }, count -> count);
     }
 
     // ---
     // Does what it says
     // ---
 
-    private static Map<String, Object> buildMap_ackMsg(@NotNull AgentId sender, @NotNull TrueMsg forTrueMsg, @NotNull Instant createdWhen, @NotNull String sendingMethod) {
+    private static Map<String, Object> buildMap_ackMsg(@NotNull SchemaMode mode, @NotNull AgentId sender, @NotNull TrueMsg forTrueMsg, @NotNull Instant createdWhen, @NotNull SendingMethod sendingMethod) {
         final Map<String, Object> res = new HashMap<>();
         res.put(field_state, MsgState.fresh.getRaw());
-        res.put(field_state_plain, MsgState.fresh.toString());
-        res.put(field_sending_method, sendingMethod);
+        putDebugColumns(res, mode, MsgState.fresh, sendingMethod);
         res.put(field_sender, sender.getRaw());
         assert sender.equals(forTrueMsg.getReceiver());
         res.put(field_receiver, forTrueMsg.getSender().getRaw());
         res.put(field_is_ack, true);
         res.put(field_acked_id, forTrueMsg.getId().getRaw()); // we "ack" the "forTrueMsg", so its "id" goes to "acked_id"
         res.put(field_when_created, createdWhen);
-        res.put(field_text, "ACK " + forTrueMsg.getId() + ", '" + forTrueMsg.getText() + "'"); // text of no interest, but let's test the single quotes
+        res.put(field_text, ackText(forTrueMsg)); // text of no interest, but let's test the single quotes
+        res.put(field_has_body, false); // SimpleJdbcInsert would insert NULL instead of the default
         return res;
     }
 
+    // ---
+    // The text of an ack message quotes the acked message's text. Only the preview is used,
+    // so that a body is not loaded just for this, and the result is cut to "maxTextLength".
+    // ---
+
+    static String ackText(@NotNull TrueMsg forTrueMsg) {
+        final String text = "ACK " + forTrueMsg.getId() + ", '" + forTrueMsg.getPreview() + "'";
+        return (text.length() <= maxTextLength) ? text : text.substring(0, maxTextLength);
+    }
+
     // ---
     // Sending an acknowledgment message to the agent registered as "sender" in the "TrueMsg".
     // The sender of the acknowledgment message is "sender". The new record's creation date
@@ -411,13 +1375,935 @@ public class Db {
     // ---
 
     public MsgId sendAckMsgReturningId(@NotNull AgentId sender, @NotNull TrueMsg forTrueMsg, @NotNull Instant createdWhen) {
-        final Map<String, Object> values = buildMap_ackMsg(sender, forTrueMsg, createdWhen, "sendAckMsgReturningId");
-        final Number id = new SimpleJdbcInsert(jdbcTemplate)
-                .withSchemaName(schemaName)
-                .withTableName(tableName_message)
-                .usingGeneratedKeyColumns(field_id)
-                .executeAndReturnKey(values);
-        return new MsgId(id.intValue());
+        return metrics.time(Operation.sendAck, SendingMethod.sendAckMsgReturningId, () -> {
+            final SchemaMode mode = statements.mode();
+            final Map<String, Object> values = buildMap_ackMsg(mode, sender, forTrueMsg, createdWhen, SendingMethod.sendAckMsgReturningId);
+            final Number id = shardOf(forTrueMsg.getSender()).insert_msg(mode).executeAndReturnKey(values);
+            countAfterCommit(() -> backlogCounters.add(forTrueMsg.getSender(), MsgState.fresh, 1));
+            return new MsgId(id.intValue());
+        }, msgId -> 1);
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_sendAckMsg(@NotNull SchemaMode mode) {
+        return "INSERT INTO "
+                + fqTableName_message
+                + " ("
+                + field_state + ","
+                + buildSql_debugColumns(mode)
+                + field_sender + ","
+                + field_receiver + ","
+                + field_is_ack + ","
+                + field_acked_id + ","
+                + field_when_created + ","
+                + field_text
+                + " ) "
+                + " VALUES (?,"
+                + buildSql_debugPlaceholders(mode)
+                + "?,?,?,?,?,?)";
+    }
+
+    // ---
+    // Index-based binder for "sendAckMsg"
+    // ---
+
+    private static void bindAckMsg(@NotNull PreparedStatement ps, @NotNull SchemaMode mode, @NotNull AgentId sender, @NotNull TrueMsg forTrueMsg, @NotNull Instant createdWhen, @NotNull SendingMethod sendingMethod) throws SQLException {
+        assert sender.equals(forTrueMsg.getReceiver());
+        int index = 1; // start at 1 not 0
+        ps.setInt(index++, MsgState.fresh.getRaw());
+        index = bindDebugColumns(ps, index, mode, MsgState.fresh, sendingMethod);
+        ps.setInt(index++, sender.getRaw());
+        ps.setInt(index++, forTrueMsg.getSender().getRaw());
+        ps.setBoolean(index++, true); // "an ACK"
+        ps.setInt(index++, forTrueMsg.getId().getRaw()); // we "ack" the "forTrueMsg", so its "id" goes to "acked_id"
+        ps.setObject(index++, createdWhen);
+        ps.setString(index, ackText(forTrueMsg));
+    }
+
+    // ---
+    // Sending acknowledgment messages for all the "forTrueMsgs" in a single JDBC batch.
+    // Returns the ids of the ack messages in the order of "forTrueMsgs".
+    // Same field values as for sendAckMsgReturningId().
+    // ---
+
+    public @NotNull List<MsgId> sendAckMsgsReturningIds(@NotNull AgentId sender, @NotNull List<TrueMsg> forTrueMsgs, @NotNull Instant createdWhen) {
+        return metrics.time(Operation.sendAck, SendingMethod.sendAckMsgsReturningIds, () -> {
+            final SchemaMode mode = statements.mode();
+            final List<MsgId> res = batchInsertReturningIds(statements.sendAckMsg(), forTrueMsgs, TrueMsg::getSender,
+                    (ps, forTrueMsg) -> bindAckMsg(ps, mode, sender, forTrueMsg, createdWhen, SendingMethod.sendAckMsgsReturningIds));
+            countAfterCommit(() -> forTrueMsgs.forEach(forTrueMsg -> backlogCounters.add(forTrueMsg.getSender(), MsgState.fresh, 1)));
+            return res;
+        }, List::size);
+    }
+
+    // ---
+    // Mark claimed true messages "seen" and ack them, in two statements. Not atomic by itself:
+    // call it inside a transaction to get a single commit (see TransactionalDb.ackBatch()).
+    // ---
+
+    @Override
+    public @NotNull List<MsgId> ackClaimedMsgs(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs, @NotNull Instant ackedWhen) {
+        if (trueMsgs.isEmpty()) {
+            return List.of();
+        }
+        markClaimedMsgsAsSeen(trueMsgs.stream().map(MsgBase::getId).toList(), ackedWhen, receiver);
+        return sendAckMsgsReturningIds(receiver, trueMsgs, ackedWhen);
+    }
+
+    // ---
+    // Process-and-ack as a Java function that runs inside the database engine.
+    // processAndAckInEngine() is registered in the schema with "CREATE ALIAS". When called,
+    // H2 passes it the session's own connection, so the statements it runs are not JDBC
+    // round trips but direct calls into the engine, in the caller's transaction.
+    // http://h2database.com/html/commands.html#create_alias
+    // http://h2database.com/html/features.html#user_defined_functions
+    //
+    // As for the trigger, this is not part of setupDatabase(): it only makes sense if H2
+    // runs embedded in this JVM, otherwise this class would have to be on the server's
+    // classpath. Dropping the schema drops the alias, so install it again after
+    // setupDatabase() with "cleanupFirst".
+    // ---
+
+    public final static String aliasName_processAndAck = "process_and_ack";
+
+    public void installProcessAndAck() {
+        final String sqlRaw = "CREATE ALIAS IF NOT EXISTS "
+                + schemaName + "." + aliasName_processAndAck
+                + " FOR '"
+                + Db.class.getName() + ".processAndAckInEngine"
+                + "'";
+        shards.forEach(shard -> shard.jdbcTemplate().execute(sqlRaw));
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // The parameters are those of processAndAckInEngine() after the connection.
+    // ---
+
+    private static String buildSql_processAndAck() {
+        return "CALL "
+                + schemaName + "." + aliasName_processAndAck
+                + "(?, ?, ?, ?)";
+    }
+
+    // ---
+    // The function behind the alias. H2 calls it with the session's connection first.
+    //
+    // It moves up to "maxBatch" "fresh" messages addressed to "receiver" straight to "seen"
+    // (one statement, see buildSql_claimMsgs()), then inserts an ack message for each true
+    // message among them (one JDBC batch). Ack messages are just marked "seen". The processed
+    // messages are returned as a result set with the columns of "columns_msg", so that
+    // msgMapper() maps it like any query on the message table.
+    //
+    // H2 also calls the function while compiling the CALL, just to get the result's columns,
+    // with a connection whose URL is "jdbc:columnlist:connection" and the parameters possibly
+    // NULL. In that case, only the empty result is returned, without touching the tables.
+    // "schemaMode" is the name of the Db.SchemaMode of the table, as the function cannot know it.
+    // ---
+
+    public static ResultSet processAndAckInEngine(Connection conn, Integer receiver, Integer maxBatch, OffsetDateTime ackedWhen, String schemaMode) throws SQLException {
+        final SimpleResultSet res = new SimpleResultSet();
+        res.addColumn(field_id, Types.INTEGER, 10, 0);
+        res.addColumn(field_state, Types.INTEGER, 10, 0);
+        res.addColumn(field_sender, Types.INTEGER, 10, 0);
+        res.addColumn(field_receiver, Types.INTEGER, 10, 0);
+        res.addColumn(field_is_ack, Types.BOOLEAN, 1, 0);
+        res.addColumn(field_acked_id, Types.INTEGER, 10, 0);
+        res.addColumn(field_text, Types.VARCHAR, maxTextLength, 0);
+        res.addColumn(field_has_body, Types.BOOLEAN, 1, 0);
+        if ("jdbc:columnlist:connection".equals(conn.getMetaData().getURL())) {
+            return res;
+        }
+        final SchemaMode mode = SchemaMode.valueOf(schemaMode);
+        final Statements st = statementsOf(mode);
+        final AgentId me = new AgentId(receiver);
+        final Instant when = ackedWhen.toInstant();
+        final List<TrueMsg> trueMsgs = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(st.processMsgs())) {
+            int index = bindStatePlain(ps, 1, mode, MsgState.seen); // SET part
+            ps.setObject(index++, when); // SET part
+            ps.setInt(index++, MsgState.seen.getRaw()); // SET part
+            ps.setInt(index++, MsgState.fresh.getRaw()); // WHERE part
+            ps.setInt(index++, receiver); // WHERE part, subquery
+            ps.setInt(index++, MsgState.fresh.getRaw()); // WHERE part, subquery
+            ps.setInt(index, maxBatch); // WHERE part, subquery
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    final int id = rs.getInt(field_id);
+                    final int state = rs.getInt(field_state);
+                    final int sender = rs.getInt(field_sender);
+                    final boolean isAck = rs.getBoolean(field_is_ack);
+                    final Object ackedId = rs.getObject(field_acked_id); // NULL for true messages
+                    final String text = rs.getString(field_text);
+                    res.addRow(id, state, sender, receiver, isAck, ackedId, text, rs.getBoolean(field_has_body));
+                    if (!isAck) {
+                        trueMsgs.add(new TrueMsg(new MsgId(id), MsgState.byCode(state), new AgentId(sender), me, text));
+                    }
+                }
+            }
+        }
+        if (!trueMsgs.isEmpty()) {
+            try (PreparedStatement ps = conn.prepareStatement(st.sendAckMsg())) {
+                for (TrueMsg trueMsg : trueMsgs) {
+                    bindAckMsg(ps, mode, me, trueMsg, when, SendingMethod.processAndAckInEngine);
+                    ps.addBatch();
+                }
+                checkBatchCounts(ps.executeBatch(), trueMsgs.size());
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Process up to "maxBatch" "fresh" messages addressed to "receiver" in a single call to
+    // the database: they are marked "seen", and the true messages among them are acked, all
+    // in one commit. This does what claimMsgs() followed by ackClaimedMsgs() and
+    // markClaimedMsgsAsSeen() do, with one JDBC round trip instead of three or four.
+    // Returns the processed messages, oldest first, in state "seen".
+    //
+    // Needs installProcessAndAck(), and a single shard: the function can only write to the
+    // database it runs in, but the ack for a message goes to the shard of the message's sender.
+    // ---
+
+    public @NotNull List<MsgBase> processAndAck(@NotNull AgentId receiver, int maxBatch, @NotNull Instant ackedWhen) {
+        return metrics.time(Operation.processAndAck, SendingMethod.processAndAckInEngine, () -> {
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+            }
+            if (shards.size() != 1) {
+                throw new IllegalStateException("Processing in the engine needs a single shard, there are " + shards.size());
+            }
+            final RowMapper<MsgBase> mapper = msgMapper();
+            final String mode = statements.mode().name();
+            final List<MsgBase> res = inOneCommit(shards.get(0), conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(sql_processAndAck)) {
+                    ps.setInt(1, receiver.getRaw());
+                    ps.setInt(2, maxBatch);
+                    ps.setObject(3, ackedWhen);
+                    ps.setString(4, mode);
+                    final List<MsgBase> msgs = new ArrayList<>();
+                    try (ResultSet rs = ps.executeQuery()) {
+                        int rowNum = 0;
+                        while (rs.next()) {
+                            msgs.add(mapper.mapRow(rs, rowNum++));
+                        }
+                    }
+                    return msgs;
+                }
+            });
+            assert res != null;
+            if (!res.isEmpty()) {
+                countAfterCommit(() -> {
+                    backlogCounters.move(receiver, MsgState.fresh, MsgState.seen, res.size());
+                    res.stream()
+                            .filter(msg -> msg instanceof TrueMsg)
+                            .forEach(msg -> backlogCounters.add(msg.getSender(), MsgState.fresh, 1));
+                });
+            }
+            return Collections.unmodifiableList(res);
+        }, List::size);
+    }
+
+    // ---
+    // Whether to compress a body, and from which length (in chars) on. Compressing a short
+    // body costs time and saves nothing. Up to the first "aboveChars" chars of a body are
+    // buffered to find out whether it is longer than that (see sendMsgWithBody()), hence the
+    // cap of "maxAboveChars" (1 Mi chars, 2 MiB of buffer at most).
+    // ---
+
+    public record BodyCompression(boolean enabled, int aboveChars) {
+
+        public final static int maxAboveChars = 1 << 20;
+
+        public BodyCompression {
+            if (aboveChars < 0 || aboveChars > maxAboveChars) {
+                throw new IllegalArgumentException("The threshold must be in [0, " + maxAboveChars + "], is " + aboveChars);
+            }
+        }
+
+        public static @NotNull BodyCompression none() {
+            return new BodyCompression(false, 0);
+        }
+
+        public static @NotNull BodyCompression above(int aboveChars) {
+            return new BodyCompression(true, aboveChars);
+        }
+    }
+
+    // ---
+    // Reads a body. Called while the body's query is still open, so it should not take long.
+    // ---
+
+    public interface BodyReader<R> {
+        R read(@NotNull Reader reader) throws IOException;
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_insertBody() {
+        return "INSERT INTO "
+                + fqTableName_body
+                + " ("
+                + field_id + ","
+                + field_compressed + ","
+                + field_body
+                + " ) "
+                + " VALUES (?,?,?)";
+    }
+
+    private static String buildSql_readBody() {
+        return "SELECT "
+                + field_compressed + ","
+                + field_body
+                + " FROM "
+                + fqTableName_body
+                + " WHERE "
+                + field_id + " = ?";
+    }
+
+    // ---
+    // Inserting a single "fresh" message whose text is read from "body", which may be large.
+    // If the text fits into the message table, it is stored there, like with the other send methods.
+    // Otherwise, the message table gets the first "maxTextLength" chars as a preview, and the
+    // whole text goes to the body table, compressed according to "compression".
+    // The text is streamed: from "body", through the UTF-8 encoder and the (optional) Deflater,
+    // into a BLOB that H2 writes to its LOB storage as the bytes come in.
+    // Message and body are inserted with a single commit. Returns the id of the message.
+    // ---
+
+    public @NotNull MsgId sendMsgWithBody(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull Reader body, @NotNull BodyCompression compression) {
+        return metrics.time(Operation.send, SendingMethod.sendMsgWithBody, () -> {
+            final MsgId res = inOneCommit(shardOf(receiver), conn -> {
+                // read enough of the body to fill the preview and to see whether there is a body
+                final char[] head = new char[maxTextLength + 1];
+                final int headLength = readAsMuchAsPossible(body, head);
+                final boolean hasBody = headLength > maxTextLength;
+                // if the compression threshold lies beyond the head, read on until it is passed
+                // or the body ends; that buffer only grows as far as the body actually goes
+                final CharArrayWriter lookahead = new CharArrayWriter(0);
+                final boolean compressed = hasBody && compression.enabled()
+                        && (headLength > compression.aboveChars() || readAhead(body, lookahead, compression.aboveChars() + 1 - headLength));
+                final MsgId msgId;
+                try (PreparedStatement ps = conn.prepareStatement(statements.sendMsgWithBody(), Statement.RETURN_GENERATED_KEYS)) {
+                    final int index = bindFreshMsg(ps, statements.mode(), createdWhen, sender, receiver, new String(head, 0, Math.min(headLength, maxTextLength)), SendingMethod.sendMsgWithBody);
+                    ps.setBoolean(index, hasBody);
+                    final int count = ps.executeUpdate();
+                    if (count != 1) {
+                        throw new IllegalStateException("Insertion count is " + count + " instead of 1");
+                    }
+                    try (ResultSet keys = ps.getGeneratedKeys()) {
+                        if (!keys.next()) {
+                            throw new IllegalStateException("Did not obtain a valid key");
+                        }
+                        msgId = new MsgId(keys.getInt(1));
+                    }
+                }
+                if (hasBody) {
+                    final Blob blob = conn.createBlob();
+                    try {
+                        // H2 only supports writing a new, empty Blob starting at position 1
+                        final OutputStream blobOut = blob.setBinaryStream(1);
+                        try (Writer writer = new OutputStreamWriter(compressed ? new DeflaterOutputStream(blobOut) : blobOut, StandardCharsets.UTF_8)) {
+                            writer.write(head, 0, headLength);
+                            lookahead.writeTo(writer);
+                            body.transferTo(writer);
+                        }
+                        try (PreparedStatement ps = conn.prepareStatement(sql_insertBody)) {
+                            ps.setInt(1, msgId.getRaw());
+                            ps.setBoolean(2, compressed);
+                            ps.setBlob(3, blob);
+                            final int count = ps.executeUpdate();
+                            if (count != 1) {
+                                throw new IllegalStateException("Insertion count of body is " + count + " instead of 1");
+                            }
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } finally {
+                        blob.free();
+                    }
+                }
+                return msgId;
+            });
+            assert res != null;
+            countAfterCommit(() -> backlogCounters.add(receiver, MsgState.fresh, 1));
+            return res;
+        }, msgId -> 1);
+    }
+
+    // ---
+    // Fill "buffer" from "reader" as far as possible. Returns the number of chars read, which is
+    // less than the buffer's length only if the reader is exhausted.
+    // ---
+
+    private static int readAsMuchAsPossible(@NotNull Reader reader, char[] buffer) {
+        try {
+            int length = 0;
+            while (length < buffer.length) {
+                final int count = reader.read(buffer, length, buffer.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return length;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // ---
+    // Copy up to "count" chars from "reader" to "writer", in small chunks. Returns whether
+    // "count" chars were copied, i.e. false only if the reader is exhausted before.
+    // ---
+
+    private static boolean readAhead(@NotNull Reader reader, @NotNull CharArrayWriter writer, int count) {
+        final char[] chunk = new char[Math.min(count, 8192)];
+        int remaining = count;
+        try {
+            while (remaining > 0) {
+                final int read = reader.read(chunk, 0, Math.min(remaining, chunk.length));
+                if (read < 0) {
+                    return false;
+                }
+                writer.write(chunk, 0, read);
+                remaining -= read;
+            }
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // ---
+    // Stream the body of the message "msgId" addressed to "receiver" to "bodyReader".
+    // Decompression and UTF-8 decoding happen on the fly, so even a very large body
+    // can be processed in bounded memory.
+    // ---
+
+    public <R> R withBody(@NotNull AgentId receiver, @NotNull MsgId msgId, @NotNull BodyReader<R> bodyReader) {
+        return metrics.time(Operation.readBody, null, () -> {
+            return shardOf(receiver).jdbcTemplate().query(sql_readBody, ps -> ps.setInt(1, msgId.getRaw()), (ResultSet rs) -> {
+                if (!rs.next()) {
+                    throw new IllegalStateException("There is no body for " + msgId);
+                }
+                final boolean compressed = rs.getBoolean(field_compressed);
+                try (InputStream in = rs.getBinaryStream(field_body);
+                     Reader reader = new InputStreamReader(compressed ? new InflaterInputStream(in) : in, StandardCharsets.UTF_8)) {
+                    return bodyReader.read(reader);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }, res -> 1);
+    }
+
+    // ---
+    // Read the whole body of the message "msgId" addressed to "receiver" into a String.
+    // This is what TrueMsg.getText() ends up calling for a message with a body.
+    // ---
+
+    public @NotNull String readBody(@NotNull AgentId receiver, @NotNull MsgId msgId) {
+        final String res = withBody(receiver, msgId, reader -> {
+            final StringWriter writer = new StringWriter();
+            reader.transferTo(writer);
+            return writer.toString();
+        });
+        assert res != null;
+        return res;
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // There is no index on "when_acked" in the message table, as that would slow down every ack.
+    // Instead, the table is read in "id" (primary key) order: old messages have small ids, so
+    // as long as the archiver keeps up, the scan finds a batch near the start of the table.
+    // ---
+
+    private static String buildSql_selectArchivableIds() {
+        return "SELECT "
+                + field_id
+                + " FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_state + " = ? "
+                + " AND "
+                + field_when_acked + " < ? "
+                + " ORDER BY "
+                + field_id
+                + " FETCH FIRST ? ROWS ONLY";
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_copyToArchive(@NotNull SchemaMode mode) {
+        final String fields = field_id + "," + field_state + ","
+                + buildSql_debugColumns(mode)
+                + String.join(",", field_sender, field_receiver,
+                field_is_ack, field_acked_id, field_when_created, field_when_acked, field_text, field_has_body);
+        return "INSERT INTO "
+                + fqTableName_archive
+                + " ("
+                + fields
+                + " ) "
+                + " SELECT "
+                + fields
+                + " FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_id + " = ANY(?)";
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_deleteArchived() {
+        return "DELETE FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_id + " = ANY(?) "
+                + " AND "
+                + field_state + " = ?";
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // The ids are selected first, so that the bodies of the messages can be deleted too.
+    // ---
+
+    private static String buildSql_selectPurgeableIds() {
+        return "SELECT "
+                + field_id
+                + " FROM "
+                + fqTableName_archive
+                + " WHERE "
+                + field_when_acked + " < ? "
+                + " FETCH FIRST ? ROWS ONLY";
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // "tableName" is the archive table or the body table.
+    // ---
+
+    private static String buildSql_deleteByIds(@NotNull String fqTableName) {
+        return "DELETE FROM "
+                + fqTableName
+                + " WHERE "
+                + field_id + " = ANY(?)";
+    }
+
+    // ---
+    // Move up to "maxBatch" "seen" messages acked before "ackedBefore" from the message table to
+    // the archive table, on each shard. Returns the number of messages moved, over all shards.
+    // On each shard, the ids are selected, the rows copied and then deleted, with a single commit.
+    // A "seen" message never changes again, so nothing can happen to the rows in-between.
+    // There should be only one archiver per database, otherwise two archivers may try to copy
+    // the same rows, and one of them fails on the archive's primary key.
+    // ---
+
+    public int archiveSeenMsgs(@NotNull Instant ackedBefore, int maxBatch) {
+        return metrics.time(Operation.archiveSeenMsgs, null, () -> {
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+            }
+            int res = 0;
+            for (Shard shard : shards) {
+                final Integer count = inOneCommit(shard, conn -> {
+                    final List<Integer> ids = new ArrayList<>(maxBatch);
+                    try (PreparedStatement ps = conn.prepareStatement(sql_selectArchivableIds)) {
+                        ps.setInt(1, MsgState.seen.getRaw());
+                        ps.setObject(2, ackedBefore);
+                        ps.setInt(3, maxBatch);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                ids.add(rs.getInt(1));
+                            }
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        return 0;
+                    }
+                    final Integer[] rawIds = ids.toArray(Integer[]::new);
+                    final int copied;
+                    try (PreparedStatement ps = conn.prepareStatement(statements.copyToArchive())) {
+                        ps.setObject(1, rawIds); // H2 maps Integer[] to an ARRAY
+                        copied = ps.executeUpdate();
+                    }
+                    final int deleted;
+                    try (PreparedStatement ps = conn.prepareStatement(sql_deleteArchived)) {
+                        ps.setObject(1, rawIds);
+                        ps.setInt(2, MsgState.seen.getRaw());
+                        deleted = ps.executeUpdate();
+                    }
+                    if (copied != ids.size() || deleted != ids.size()) {
+                        throw new IllegalStateException("Archiving " + ids.size() + " messages copied " + copied + " and deleted " + deleted);
+                    }
+                    return ids.size();
+                });
+                assert count != null;
+                res += count;
+            }
+            return res;
+        }, count -> count);
+    }
+
+    // ---
+    // Delete up to "maxBatch" messages acked before "ackedBefore" from the archive table,
+    // on each shard, together with their bodies. This is the "time to live" of a message.
+    // Returns the number of messages deleted, over all shards.
+    // ---
+
+    public int purgeArchivedMsgs(@NotNull Instant ackedBefore, int maxBatch) {
+        return metrics.time(Operation.purgeArchivedMsgs, null, () -> {
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+            }
+            int res = 0;
+            for (Shard shard : shards) {
+                final Integer count = inOneCommit(shard, conn -> {
+                    final List<Integer> ids = new ArrayList<>(maxBatch);
+                    try (PreparedStatement ps = conn.prepareStatement(sql_selectPurgeableIds)) {
+                        ps.setObject(1, ackedBefore);
+                        ps.setInt(2, maxBatch);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                ids.add(rs.getInt(1));
+                            }
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        return 0;
+                    }
+                    final Integer[] rawIds = ids.toArray(Integer[]::new);
+                    try (PreparedStatement ps = conn.prepareStatement(sql_deleteBodies)) {
+                        ps.setObject(1, rawIds); // most messages have no body, so no count check
+                        ps.executeUpdate();
+                    }
+                    final int deleted;
+                    try (PreparedStatement ps = conn.prepareStatement(sql_deletePurged)) {
+                        ps.setObject(1, rawIds);
+                        deleted = ps.executeUpdate();
+                    }
+                    if (deleted != ids.size()) {
+                        throw new IllegalStateException("Purging " + ids.size() + " messages deleted " + deleted);
+                    }
+                    return deleted;
+                });
+                assert count != null;
+                res += count;
+            }
+            return res;
+        }, count -> count);
+    }
+
+    // ---
+    // Count all the messages in the archive, over all shards
+    // ---
+
+    public long countArchivedMsgs() {
+        return metrics.time(Operation.countArchivedMsgs, null, () -> {
+            long res = 0;
+            for (Shard shard : shards) {
+                final Integer count = shard.jdbcTemplate().queryForObject(sql_countArchivedMsgs, Db::rowMapper_x);
+                assert count != null;
+                res += count;
+            }
+            return res;
+        }, count -> shards.size());
+    }
+
+    // ---
+    // Apply a change to the backlog counters once the change to the database is committed.
+    // Inside a Spring transaction, that is after the transaction commits; nothing is applied
+    // if it rolls back. Otherwise, the statement has been auto-committed already.
+    // https://docs.spring.io/spring-framework/docs/current/javadoc-api/org/springframework/transaction/support/TransactionSynchronizationManager.html
+    // ---
+
+    private static void countAfterCommit(@NotNull Runnable update) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    update.run();
+                }
+            });
+        } else {
+            update.run();
+        }
+    }
+
+    // ---
+    // Does what it says. Result is assigned once to a static final.
+    // ---
+
+    private static String buildSql_countBacklogs() {
+        return "SELECT "
+                + field_receiver + ","
+                + field_state + ","
+                + "COUNT(*) AS x"
+                + " FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_state + " IN (?,?) "
+                + " GROUP BY "
+                + field_receiver + ","
+                + field_state;
+    }
+
+    // ---
+    // Compare the backlog counters with the actual counts in the database, over all shards,
+    // and return the differences. If "repair" is set, the counters are set to the actual counts.
+    // Messages that are sent, claimed or acked while this runs make for spurious differences,
+    // so the result is only meaningful if nothing else happens at the same time.
+    // ---
+
+    public @NotNull List<BacklogCounters.Mismatch> reconcileBacklogCounters(boolean repair) {
+        final Map<AgentId, Map<MsgState, Long>> actual = new HashMap<>();
+        for (Shard shard : shards) {
+            shard.jdbcTemplate().query(sql_countBacklogs, ps -> {
+                ps.setInt(1, MsgState.fresh.getRaw());
+                ps.setInt(2, MsgState.claimed.getRaw());
+            }, (ResultSet row) -> {
+                final AgentId receiver = new AgentId(row.getInt(field_receiver));
+                final MsgState state = MsgState.byCode(row.getInt(field_state));
+                actual.computeIfAbsent(receiver, k -> new EnumMap<>(MsgState.class)).put(state, row.getLong("x"));
+            });
+        }
+        final Set<AgentId> receivers = new TreeSet<>(actual.keySet());
+        receivers.addAll(backlogCounters.getReceivers());
+        final List<BacklogCounters.Mismatch> res = new ArrayList<>();
+        for (AgentId receiver : receivers) {
+            for (MsgState state : List.of(MsgState.fresh, MsgState.claimed)) {
+                final long counted = backlogCounters.get(receiver, state);
+                final long actualCount = actual.getOrDefault(receiver, Map.of()).getOrDefault(state, 0L);
+                if (counted != actualCount) {
+                    res.add(new BacklogCounters.Mismatch(receiver, state, counted, actualCount));
+                    if (repair) {
+                        backlogCounters.set(receiver, state, actualCount);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Analytics over the timestamps, for use after a run (e.g. a load test).
+    // Both the message table and the archive table are looked at, so that archived messages
+    // count too. The heavy lifting (bucketing, counting, windowing) is done by H2, so that only
+    // a few rows per shard come back, even over millions of messages. Bucket counts from
+    // different shards are simply added up; percentiles are taken from the merged counts.
+    // The timestamps are compared as "TIMESTAMP WITH TIME ZONE", so the parameters are cast.
+    // https://h2database.com/html/functions.html#datediff
+    // https://h2database.com/html/functions.html#row_number
+    // ---
+
+    // ---
+    // Ack latency: the time from "when_created" to "when_acked" of the true messages created
+    // in ["createdFrom", "createdTo"). True messages not acked yet are left out.
+    // The latencies are counted in buckets of "resolution" in H2, and the percentiles
+    // (nearest rank) are read off the merged buckets. A percentile is given as the upper
+    // bound of its bucket, i.e. it is exact to "resolution", and never too low.
+    // ---
+
+    public record AckLatencies(long count, @NotNull Duration resolution, @NotNull SortedMap<Double, Duration> percentiles, @NotNull Duration max) {
+    }
+
+    private static String buildSql_ackLatencyHistogram() {
+        final String select = "SELECT "
+                + "DATEDIFF(MICROSECOND, " + field_when_created + ", " + field_when_acked + ") / ? AS bucket"
+                + " FROM %s"
+                + " WHERE "
+                + field_is_ack + " = FALSE "
+                + " AND "
+                + field_when_acked + " IS NOT NULL "
+                + " AND "
+                + field_when_created + " >= CAST(? AS TIMESTAMP WITH TIME ZONE) "
+                + " AND "
+                + field_when_created + " < CAST(? AS TIMESTAMP WITH TIME ZONE)";
+        return "SELECT bucket, COUNT(*) AS x FROM ( "
+                + String.format(select, fqTableName_message)
+                + " UNION ALL "
+                + String.format(select, fqTableName_archive)
+                + " ) GROUP BY bucket";
+    }
+
+    public @NotNull AckLatencies ackLatencies(@NotNull Instant createdFrom, @NotNull Instant createdTo, @NotNull Duration resolution, @NotNull List<Double> percentiles) {
+        final long resolution_us = resolution.toNanos() / 1000;
+        if (resolution_us <= 0) {
+            throw new IllegalArgumentException("The resolution must be at least 1 us, is " + resolution);
+        }
+        return metrics.time(Operation.ackLatencies, null, () -> {
+            final SortedMap<Long, Long> histogram = new TreeMap<>();
+            for (Shard shard : shards) {
+                shard.jdbcTemplate().query(sql_ackLatencyHistogram, ps -> {
+                    for (int index = 1; index <= 4; index += 3) {
+                        ps.setLong(index, resolution_us);
+                        ps.setObject(index + 1, createdFrom);
+                        ps.setObject(index + 2, createdTo);
+                    }
+                }, (ResultSet row) -> {
+                    histogram.merge(row.getLong("bucket"), row.getLong("x"), Long::sum);
+                });
+            }
+            final long count = histogram.values().stream().mapToLong(Long::longValue).sum();
+            final SortedMap<Double, Duration> res = new TreeMap<>();
+            for (double p : percentiles) {
+                if (p <= 0 || p > 1) {
+                    throw new IllegalArgumentException("A percentile must be in (0, 1], is " + p);
+                }
+                final long rank = (long) Math.ceil(p * count);
+                long cumulated = 0;
+                for (Map.Entry<Long, Long> entry : histogram.entrySet()) {
+                    cumulated += entry.getValue();
+                    if (cumulated >= rank) {
+                        res.put(p, Duration.ofNanos((entry.getKey() + 1) * resolution_us * 1000));
+                        break;
+                    }
+                }
+            }
+            final Duration max = histogram.isEmpty() ? Duration.ZERO : Duration.ofNanos((histogram.lastKey() + 1) * resolution_us * 1000);
+            return new AckLatencies(count, resolution, Collections.unmodifiableSortedMap(res), max);
+        }, latencies -> latencies.count());
+    }
+
+    // ---
+    // Throughput: the true messages and the ack messages created per time bucket of
+    // length "bucketLength", from "from" (inclusive) to "to" (exclusive). The buckets
+    // are computed by H2 as whole multiples of "bucketLength" after "from". All the buckets
+    // are returned, including the empty ones, in time order.
+    // ---
+
+    public record ThroughputBucket(@NotNull Instant start, long trueMsgs, long ackMsgs) {
+    }
+
+    private static String buildSql_throughputPerBucket() {
+        final String select = "SELECT "
+                + "DATEDIFF(MILLISECOND, CAST(? AS TIMESTAMP WITH TIME ZONE), " + field_when_created + ") / ? AS bucket, "
+                + field_is_ack
+                + " FROM %s"
+                + " WHERE "
+                + field_when_created + " >= CAST(? AS TIMESTAMP WITH TIME ZONE) "
+                + " AND "
+                + field_when_created + " < CAST(? AS TIMESTAMP WITH TIME ZONE)";
+        return "SELECT bucket, "
+                + "SUM(CASE WHEN " + field_is_ack + " THEN 0 ELSE 1 END) AS true_msgs, "
+                + "SUM(CASE WHEN " + field_is_ack + " THEN 1 ELSE 0 END) AS ack_msgs"
+                + " FROM ( "
+                + String.format(select, fqTableName_message)
+                + " UNION ALL "
+                + String.format(select, fqTableName_archive)
+                + " ) GROUP BY bucket";
+    }
+
+    public @NotNull List<ThroughputBucket> throughputPerBucket(@NotNull Instant from, @NotNull Instant to, @NotNull Duration bucketLength) {
+        final long bucket_ms = bucketLength.toMillis();
+        if (bucket_ms <= 0) {
+            throw new IllegalArgumentException("The bucket length must be at least 1 ms, is " + bucketLength);
+        }
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("'from' must be before 'to', is " + from + " and " + to);
+        }
+        return metrics.time(Operation.throughputPerBucket, null, () -> {
+            final int bucketCount = (int) ((Duration.between(from, to).toMillis() + bucket_ms - 1) / bucket_ms);
+            final long[] trueMsgs = new long[bucketCount];
+            final long[] ackMsgs = new long[bucketCount];
+            for (Shard shard : shards) {
+                shard.jdbcTemplate().query(sql_throughputPerBucket, ps -> {
+                    for (int index = 1; index <= 5; index += 4) {
+                        ps.setObject(index, from);
+                        ps.setLong(index + 1, bucket_ms);
+                        ps.setObject(index + 2, from);
+                        ps.setObject(index + 3, to);
+                    }
+                }, (ResultSet row) -> {
+                    // "DATEDIFF" counts millisecond boundaries, which may put the very last messages one bucket too far
+                    final int bucket = Math.min(row.getInt("bucket"), bucketCount - 1);
+                    trueMsgs[bucket] += row.getLong("true_msgs");
+                    ackMsgs[bucket] += row.getLong("ack_msgs");
+                });
+            }
+            final List<ThroughputBucket> res = new ArrayList<>(bucketCount);
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                res.add(new ThroughputBucket(from.plusMillis(bucket * bucket_ms), trueMsgs[bucket], ackMsgs[bucket]));
+            }
+            return res;
+        }, List::size);
+    }
+
+    // ---
+    // Backlog age: for each agent with messages in state "fresh" or "claimed", the number of
+    // such messages and the age, at "now", of the oldest one (the one with the smallest id).
+    // H2 does this in a single pass with window functions partitioned by receiver, instead of
+    // a GROUP BY and a join back to find the oldest message's id.
+    // Each receiver is on exactly one shard, so the shards' results just add up.
+    // The oldest backlogs come first.
+    // ---
+
+    public record BacklogAge(@NotNull AgentId receiver, long pending, @NotNull MsgId oldestMsgId, @NotNull Duration oldestAge) {
+    }
+
+    private static String buildSql_backlogAges() {
+        return "SELECT "
+                + field_receiver + ", pending, " + field_id + ", "
+                + "DATEDIFF(MILLISECOND, " + field_when_created + ", CAST(? AS TIMESTAMP WITH TIME ZONE)) AS age_ms"
+                + " FROM ( "
+                + " SELECT "
+                + field_receiver + ","
+                + field_id + ","
+                + field_when_created + ","
+                + " COUNT(*) OVER (PARTITION BY " + field_receiver + ") AS pending, "
+                + " ROW_NUMBER() OVER (PARTITION BY " + field_receiver + " ORDER BY " + field_id + ") AS rn"
+                + " FROM "
+                + fqTableName_message
+                + " WHERE "
+                + field_state + " IN (?,?) "
+                + " ) "
+                + " WHERE rn = 1";
+    }
+
+    public @NotNull List<BacklogAge> backlogAges(@NotNull Instant now) {
+        return metrics.time(Operation.backlogAges, null, () -> {
+            final List<BacklogAge> res = new ArrayList<>();
+            for (Shard shard : shards) {
+                res.addAll(shard.jdbcTemplate().query(sql_backlogAges, ps -> {
+                    ps.setObject(1, now);
+                    ps.setInt(2, MsgState.fresh.getRaw());
+                    ps.setInt(3, MsgState.claimed.getRaw());
+                }, (row, rowNum) -> new BacklogAge(
+                        new AgentId(row.getInt(field_receiver)),
+                        row.getLong("pending"),
+                        new MsgId(row.getInt(field_id)),
+                        Duration.ofMillis(row.getLong("age_ms")))));
+            }
+            res.sort(Comparator.comparing(BacklogAge::oldestAge).reversed());
+            return res;
+        }, List::size);
+    }
+
+    // ---
+    // Ask H2 for the query plans of the polling queries, to check that they use the inbox index.
+    // https://h2database.com/html/commands.html#explain
+    // ---
+
+    public @NotNull List<String> explainInboxQueries(@NotNull AgentId receiver) {
+        final List<String> res = new ArrayList<>();
+        for (String sql : List.of(sql_countMsgs, sql_retrieveMsgs)) {
+            res.addAll(shardOf(receiver).jdbcTemplate().query(
+                    "EXPLAIN " + sql,
+                    ps -> bindReceiverAndState(ps, receiver, MsgState.fresh),
+                    (row, rowNum) -> row.getString(1)));
+        }
+        return res;
     }
 
 }
@@ -0,0 +1,235 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+// ---
+// Micrometer instrumentation of the Db operations.
+//
+// Each operation is recorded under three meters, all tagged with "operation" and
+// "sending_method" (the SendingMethod of an insert, "none" for anything else):
+//
+// - "db.operation"        Timer with a percentile histogram; only successful calls
+// - "db.operation.rows"   DistributionSummary of the rows returned or affected per call
+// - "db.operation.errors" Counter of failed calls, additionally tagged with the "exception" class
+//
+// The Timer and the DistributionSummary of each (operation, sending method) pair are looked up
+// in the registry once, on first use, and kept in a table, so that a call does not go through
+// the registry's meter lookup. Errors are rare, their counters are looked up every time.
+//
+// dump() renders the meters as text lines, for logging at the end of a run. That includes
+// meters registered by others in the same registry, e.g. the connection pool's (see ShardPools).
+// ---
+
+public class DbMetrics {
+
+    public enum Operation {
+        send,
+        sendAck,
+        countMsgs,
+        countAllMsgs,
+        countArchivedMsgs,
+        retrieveMsgs,
+        forEachMsg,
+        markMsgAsSeen,
+        claimMsgs,
+        markClaimedMsgsAsSeen,
+        unclaimMsgs,
+        processAndAck,
+        readBody,
+        archiveSeenMsgs,
+        purgeArchivedMsgs,
+        ackLatencies,
+        throughputPerBucket,
+        backlogAges
+    }
+
+    public final static String meterName_operation = "db.operation";
+    public final static String meterName_rows = "db.operation.rows";
+    public final static String meterName_errors = "db.operation.errors";
+
+    public final static String tagName_operation = "operation";
+    public final static String tagName_sendingMethod = "sending_method";
+    public final static String tagName_exception = "exception";
+
+    private final static String noSendingMethod = "none";
+
+    private record Meters(@NotNull Timer timer, @NotNull DistributionSummary rows) {
+    }
+
+    private final @NotNull MeterRegistry registry;
+
+    // Indexed by operation and sending method, see indexOf(). Two threads may build the same
+    // entry at the same time, which is harmless: the registry hands out the same meters to both.
+
+    private final @NotNull AtomicReferenceArray<Meters> table;
+
+    public DbMetrics(@NotNull MeterRegistry registry) {
+        this.registry = registry;
+        this.table = new AtomicReferenceArray<>(Operation.values().length * (SendingMethod.values().length + 1));
+    }
+
+    public @NotNull MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    private static int indexOf(@NotNull Operation operation, @Nullable SendingMethod sendingMethod) {
+        final int sendingMethodIndex = (sendingMethod == null) ? 0 : sendingMethod.ordinal() + 1;
+        return operation.ordinal() * (SendingMethod.values().length + 1) + sendingMethodIndex;
+    }
+
+    private static @NotNull List<Tag> tagsOf(@NotNull Operation operation, @Nullable SendingMethod sendingMethod) {
+        return List.of(
+                Tag.of(tagName_operation, operation.toString()),
+                Tag.of(tagName_sendingMethod, (sendingMethod == null) ? noSendingMethod : sendingMethod.toString()));
+    }
+
+    private @NotNull Meters metersOf(@NotNull Operation operation, @Nullable SendingMethod sendingMethod) {
+        final int index = indexOf(operation, sendingMethod);
+        Meters res = table.get(index);
+        if (res == null) {
+            final List<Tag> tags = tagsOf(operation, sendingMethod);
+            final Timer timer = Timer.builder(meterName_operation)
+                    .tags(tags)
+                    .publishPercentiles(0.5, 0.9, 0.99)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(1_000))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+            final DistributionSummary rows = DistributionSummary.builder(meterName_rows)
+                    .tags(tags)
+                    .baseUnit("rows")
+                    .register(registry);
+            res = new Meters(timer, rows);
+            table.set(index, res);
+        }
+        return res;
+    }
+
+    private void countError(@NotNull Operation operation, @Nullable SendingMethod sendingMethod, @NotNull Throwable ex) {
+        Counter.builder(meterName_errors)
+                .tags(tagsOf(operation, sendingMethod))
+                .tag(tagName_exception, ex.getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    // ---
+    // Run "call", recording its duration and the rows it returned or affected, as given by
+    // "rowsOf" applied to its result. An exception is counted and passed on.
+    // ---
+
+    public <T> T time(@NotNull Operation operation, @Nullable SendingMethod sendingMethod, @NotNull Supplier<T> call, @NotNull ToLongFunction<? super T> rowsOf) {
+        final Meters meters = metersOf(operation, sendingMethod);
+        final Timer.Sample sample = Timer.start(registry);
+        final T res;
+        try {
+            res = call.get();
+        } catch (RuntimeException | Error ex) {
+            countError(operation, sendingMethod, ex);
+            throw ex;
+        }
+        sample.stop(meters.timer());
+        meters.rows().record(rowsOf.applyAsLong(res));
+        return res;
+    }
+
+    // ---
+    // Same as above, for a call without result that affects "rows" rows if it succeeds
+    // ---
+
+    public void time(@NotNull Operation operation, @Nullable SendingMethod sendingMethod, long rows, @NotNull Runnable call) {
+        time(operation, sendingMethod, () -> {
+            call.run();
+            return rows;
+        }, Long::longValue);
+    }
+
+    // ---
+    // The number of successful calls so far, over all operations. Can be read while
+    // operations are being recorded, e.g. at the start and the end of a measurement window.
+    // ---
+
+    public long countOperations() {
+        long res = 0;
+        for (int i = 0; i < table.length(); i++) {
+            final Meters meters = table.get(i);
+            if (meters != null) {
+                res += meters.timer().count();
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Remove the meters of Db from the registry, e.g. to start a new run from zero.
+    // Meters registered by others (e.g. the connection pool's) are left alone.
+    // Not to be called while operations are being recorded.
+    // ---
+
+    public void clear() {
+        for (Meter meter : new ArrayList<>(registry.getMeters())) {
+            if (meter.getId().getName().startsWith(meterName_operation)) {
+                registry.remove(meter);
+            }
+        }
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    // ---
+    // One line per meter, sorted by meter name and tags. Times are in microseconds.
+    // ---
+
+    public @NotNull List<String> dump() {
+        final List<Meter> meters = new ArrayList<>(registry.getMeters());
+        meters.sort(Comparator.comparing((Meter meter) -> meter.getId().getName())
+                .thenComparing(meter -> meter.getId().getTags().toString()));
+        final List<String> res = new ArrayList<>(meters.size());
+        for (Meter meter : meters) {
+            final String tags = meter.getId().getTags().stream()
+                    .map(tag -> tag.getKey() + "=" + tag.getValue())
+                    .collect(Collectors.joining(", "));
+            final String prefix = String.format("%-20s %-70s", meter.getId().getName(), tags);
+            if (meter instanceof Timer timer) {
+                final HistogramSnapshot snapshot = timer.takeSnapshot();
+                final StringBuilder buf = new StringBuilder(String.format("%s count %,9d, mean %,10.1f us",
+                        prefix, snapshot.count(), snapshot.mean(TimeUnit.MICROSECONDS)));
+                for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+                    buf.append(String.format(", p%.0f %,10.1f us", percentile.percentile() * 100, percentile.value(TimeUnit.MICROSECONDS)));
+                }
+                buf.append(String.format(", max %,10.1f us", snapshot.max(TimeUnit.MICROSECONDS)));
+                res.add(buf.toString());
+            } else if (meter instanceof DistributionSummary summary) {
+                res.add(String.format("%s count %,9d, total %,12.0f, mean %,8.1f, max %,8.0f",
+                        prefix, summary.count(), summary.totalAmount(), summary.mean(), summary.max()));
+            } else if (meter instanceof Counter counter) {
+                res.add(String.format("%s count %,9.0f", prefix, counter.count()));
+            } else if (meter instanceof Gauge gauge) {
+                res.add(String.format("%s value %,9.1f", prefix, gauge.value()));
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,169 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ---
+// A MessageStore that keeps the messages in plain Java data structures, without any
+// persistence and without locks. It is the upper bound of what the agent protocol can do:
+// comparing it with MvStoreMessageStore and Db separates the cost of the protocol (the
+// agents, their sleeping and their bookkeeping) from the cost of storing the messages.
+//
+// - The "fresh" messages of a receiver are in a ConcurrentLinkedQueue (Michael & Scott's
+//   non-blocking queue), oldest first. A claim polls the queue, and only one consumer gets
+//   a given message out of it.
+// - Each message has its state in an AtomicInteger (MsgState.getRaw()). Every state change
+//   is a compareAndSet() from the expected state, so it happens once or not at all.
+// - "claimed" messages are in a ConcurrentHashMap by id, for markClaimedMsgsAsSeen().
+// - "seen" messages are not kept: nobody looks at them again, and this way the memory used
+//   does not grow with the run time.
+// - Message ids come from an AtomicInteger, which thus also counts all the messages ever sent.
+//
+// Backlog counters are kept as in Db, see BacklogCounters.
+// https://docs.oracle.com/en/java/javase/21/docs/api/java.base/java/util/concurrent/ConcurrentLinkedQueue.html
+// ---
+
+public class InMemoryMessageStore implements MessageStore {
+
+    // ---
+    // A message with its state. "ackedId" is the id of the acked true message for an ack
+    // message, null otherwise.
+    // ---
+
+    private static final class Entry {
+
+        private final int id;
+        private final @NotNull AgentId sender;
+        private final @NotNull AgentId receiver;
+        private final @Nullable MsgId ackedId;
+        private final @NotNull Instant createdWhen;
+        private final @NotNull String text;
+        private final @NotNull AtomicInteger state = new AtomicInteger(MsgState.fresh.getRaw());
+
+        private Entry(int id, @NotNull AgentId sender, @NotNull AgentId receiver, @Nullable MsgId ackedId, @NotNull Instant createdWhen, @NotNull String text) {
+            this.id = id;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.ackedId = ackedId;
+            this.createdWhen = createdWhen;
+            this.text = text;
+        }
+
+        private boolean moveState(@NotNull MsgState from, @NotNull MsgState to) {
+            return state.compareAndSet(from.getRaw(), to.getRaw());
+        }
+
+        private @NotNull MsgBase toMsg() {
+            final MsgState msgState = MsgState.byCode(state.get());
+            if (ackedId != null) {
+                return new AckMsg(new MsgId(id), msgState, sender, receiver, ackedId);
+            } else {
+                return new TrueMsg(new MsgId(id), msgState, sender, receiver, text);
+            }
+        }
+    }
+
+    private final @NotNull ConcurrentHashMap<AgentId, Queue<Entry>> freshByReceiver = new ConcurrentHashMap<>();
+    private final @NotNull ConcurrentHashMap<Integer, Entry> claimed = new ConcurrentHashMap<>();
+    private final @NotNull AtomicInteger lastId = new AtomicInteger(0);
+    private final @NotNull BacklogCounters backlogCounters = new BacklogCounters();
+
+    private @NotNull Queue<Entry> freshOf(@NotNull AgentId receiver) {
+        return freshByReceiver.computeIfAbsent(receiver, k -> new ConcurrentLinkedQueue<>());
+    }
+
+    // ---
+    // Counted before it is queued, so that the counter never is below the queue's length
+    // ---
+
+    private @NotNull MsgId enqueue(@NotNull AgentId sender, @NotNull AgentId receiver, @Nullable MsgId ackedId, @NotNull Instant createdWhen, @NotNull String text) {
+        final Entry entry = new Entry(lastId.incrementAndGet(), sender, receiver, ackedId, createdWhen, text);
+        backlogCounters.add(receiver, MsgState.fresh, 1);
+        freshOf(receiver).add(entry);
+        return new MsgId(entry.id);
+    }
+
+    // ---
+    // MessageStore implementation
+    // ---
+
+    @Override
+    public @NotNull List<MsgId> sendMsgs(@NotNull List<MsgToSend> msgs) {
+        final List<MsgId> res = new ArrayList<>(msgs.size());
+        for (MsgToSend msg : msgs) {
+            res.add(enqueue(msg.sender(), msg.receiver(), null, msg.createdWhen(), msg.text()));
+        }
+        return res;
+    }
+
+    @Override
+    public @NotNull List<MsgBase> claimMsgs(@NotNull AgentId receiver, int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+        }
+        final Queue<Entry> queue = freshOf(receiver);
+        final List<MsgBase> res = new ArrayList<>(Math.min(maxBatch, 64));
+        Entry entry;
+        while (res.size() < maxBatch && (entry = queue.poll()) != null) {
+            // the queue hands out each entry once, so this cannot fail
+            if (!entry.moveState(MsgState.fresh, MsgState.claimed)) {
+                throw new IllegalStateException("Message " + entry.id + " taken from the queue of " + receiver + " is not 'fresh'");
+            }
+            claimed.put(entry.id, entry);
+            res.add(entry.toMsg());
+        }
+        backlogCounters.move(receiver, MsgState.fresh, MsgState.claimed, res.size());
+        return res;
+    }
+
+    @Override
+    public void markClaimedMsgsAsSeen(@NotNull List<MsgId> msgIds, @NotNull Instant ackedWhen, @NotNull AgentId receiver) {
+        int count = 0;
+        for (MsgId msgId : msgIds) {
+            final Entry entry = claimed.get(msgId.getRaw());
+            if (entry != null && entry.receiver.equals(receiver) && entry.moveState(MsgState.claimed, MsgState.seen)) {
+                claimed.remove(msgId.getRaw(), entry);
+                count++;
+            }
+        }
+        backlogCounters.move(receiver, MsgState.claimed, MsgState.seen, count);
+        if (count != msgIds.size()) {
+            throw new IllegalStateException("Trying to acknowledge " + msgIds.size() + " claimed messages resulted in a count of " + count);
+        }
+    }
+
+    @Override
+    public @NotNull List<MsgId> ackClaimedMsgs(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs, @NotNull Instant ackedWhen) {
+        markClaimedMsgsAsSeen(trueMsgs.stream().map(MsgBase::getId).toList(), ackedWhen, receiver);
+        final List<MsgId> res = new ArrayList<>(trueMsgs.size());
+        for (TrueMsg trueMsg : trueMsgs) {
+            res.add(enqueue(receiver, trueMsg.getSender(), trueMsg.getId(), ackedWhen, Db.ackText(trueMsg)));
+        }
+        return res;
+    }
+
+    @Override
+    public long countBacklog(@NotNull AgentId receiver, @NotNull MsgState msgState) {
+        return backlogCounters.get(receiver, msgState);
+    }
+
+    // ---
+    // Every message ever sent, including the "seen" ones that are no longer kept
+    // ---
+
+    @Override
+    public long countAllMsgs() {
+        return lastId.get();
+    }
+
+}
@@ -0,0 +1,97 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ---
+// An in-JVM "doorbell" per receiving agent. InboxTrigger rings the doorbell of the
+// receiver whenever a message row is inserted, and the receiving agent blocks on its
+// doorbell instead of sleeping and polling.
+//
+// There is a single instance per JVM because H2 instantiates the trigger class itself
+// (by reflection) and the trigger has no other way to find the hub.
+//
+// Only works if H2 runs embedded in the same JVM (a "jdbc:h2:mem:" or "jdbc:h2:file:" URL).
+// With a "jdbc:h2:tcp:" URL, the trigger runs in the server's JVM and nobody here is woken up.
+//
+// The ring is "sticky": if nobody waits when the doorbell rings, the next wait returns at once.
+// Several rings before a wait are collapsed into one.
+//
+// A ReentrantLock is used instead of "synchronized" so that a virtual thread waiting on
+// a doorbell does not pin its carrier thread.
+// ---
+
+public final class InboxNotificationHub {
+
+    private final static InboxNotificationHub instance = new InboxNotificationHub();
+
+    public static @NotNull InboxNotificationHub getInstance() {
+        return instance;
+    }
+
+    private static final class Doorbell {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition rung = lock.newCondition();
+        private boolean pending = false;
+
+        void ring() {
+            lock.lock();
+            try {
+                pending = true;
+                rung.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean await(@NotNull Duration timeout) throws InterruptedException {
+            lock.lock();
+            try {
+                long remaining_ns = timeout.toNanos();
+                while (!pending) {
+                    if (remaining_ns <= 0) {
+                        return false;
+                    }
+                    remaining_ns = rung.awaitNanos(remaining_ns);
+                }
+                pending = false;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<AgentId, Doorbell> doorbells = new ConcurrentHashMap<>();
+
+    private InboxNotificationHub() {
+    }
+
+    private @NotNull Doorbell doorbellOf(@NotNull AgentId receiver) {
+        return doorbells.computeIfAbsent(receiver, k -> new Doorbell());
+    }
+
+    // ---
+    // Called by InboxTrigger, i.e. by whatever thread inserts a message row.
+    // ---
+
+    public void ring(@NotNull AgentId receiver) {
+        doorbellOf(receiver).ring();
+    }
+
+    // ---
+    // Called by the receiving agent. Returns true if the doorbell rang (possibly before the call),
+    // false if the timeout expired first.
+    // ---
+
+    public boolean awaitMail(@NotNull AgentId receiver, @NotNull Duration timeout) throws InterruptedException {
+        return doorbellOf(receiver).await(timeout);
+    }
+
+}
@@ -0,0 +1,55 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import org.h2.api.Trigger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// ---
+// An H2 trigger, fired for each row inserted into the message table, which rings the
+// doorbell of the message's receiver in the InboxNotificationHub.
+// It is installed by Db.installInboxTrigger().
+// http://h2database.com/html/commands.html#create_trigger
+// http://h2database.com/javadoc/org/h2/api/Trigger.html
+//
+// Note that the trigger fires when the row is inserted, not when the insert is committed.
+// The receiver may thus wake up a bit too early and not see the row yet. The receiver
+// has to re-check shortly after such a "false alarm" (see AgentRunnable).
+//
+// H2 instantiates this class by reflection, using the no-args constructor.
+// ---
+
+public class InboxTrigger implements Trigger {
+
+    private int receiverColumnIndex = -1;
+
+    // ---
+    // Find the position of the "receiver" column in the row arrays passed to fire().
+    // This is what H2's own TriggerAdapter does too.
+    // ---
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getColumns(null, schemaName, tableName, null)) {
+            while (rs.next()) {
+                if (Db.field_receiver.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    receiverColumnIndex = rs.getInt("ORDINAL_POSITION") - 1;
+                }
+            }
+        }
+        if (receiverColumnIndex < 0) {
+            throw new SQLException("Table " + schemaName + "." + tableName + " has no column " + Db.field_receiver);
+        }
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) {
+        if (newRow != null) {
+            final int receiver = ((Number) newRow[receiverColumnIndex]).intValue();
+            InboxNotificationHub.getInstance().ring(new AgentId(receiver));
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgBase;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgState;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.util.List;
+
+// ---
+// What the agent protocol needs from wherever the messages are kept: send, claim, mark
+// "seen", ack, and count. AgentRunnable can run on any implementation.
+//
+// Implementations:
+//
+// - Db: the message table, through JdbcTemplate (SQL, JDBC, connection pool)
+// - MvStoreMessageStore: H2's storage engine (MVStore) used directly, without SQL or JDBC
+// - InMemoryMessageStore: lock-free Java data structures, no persistence at all
+//
+// The semantics are those of Db: a claimed message is no longer visible to claimMsgs(),
+// messages are claimed oldest first, and message ids are unique over the whole store.
+// ---
+
+public interface MessageStore {
+
+    // ---
+    // Send "fresh" messages, returning their ids in the order of "msgs"
+    // ---
+
+    @NotNull List<MsgId> sendMsgs(@NotNull List<MsgToSend> msgs);
+
+    // ---
+    // Move up to "maxBatch" "fresh" messages addressed to "receiver" into state "claimed"
+    // and return them, oldest first
+    // ---
+
+    @NotNull List<MsgBase> claimMsgs(@NotNull AgentId receiver, int maxBatch);
+
+    // ---
+    // Move messages previously claimed by "receiver" into state "seen"
+    // ---
+
+    void markClaimedMsgsAsSeen(@NotNull List<MsgId> msgIds, @NotNull Instant ackedWhen, @NotNull AgentId receiver);
+
+    // ---
+    // Move true messages previously claimed by "receiver" into state "seen" and send an ack
+    // message for each. Returns the ids of the ack messages, in the order of "trueMsgs".
+    // ---
+
+    @NotNull List<MsgId> ackClaimedMsgs(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs, @NotNull Instant ackedWhen);
+
+    // ---
+    // The number of messages addressed to "receiver" in state "fresh" or "claimed".
+    // Called on every loop of an agent, so it should be cheap.
+    // ---
+
+    long countBacklog(@NotNull AgentId receiver, @NotNull MsgState msgState);
+
+    // ---
+    // The number of messages in the store, whatever their state
+    // ---
+
+    long countAllMsgs();
+
+}
@@ -0,0 +1,102 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// ---
+// A bounded, lock-free ring buffer for many producers and a single consumer.
+//
+// Each slot has a sequence number that says whose turn it is:
+// - sequence == position: the slot is free for the producer that claims "position"
+// - sequence == position + 1: the slot holds the item put at "position", for the consumer
+// A producer claims a position by a CAS on "tail", fills the slot, then publishes it by
+// setting the slot's sequence. The consumer takes the item and frees the slot for the
+// producer that comes one full turn later (position + capacity).
+// This is Dmitry Vyukov's bounded MPMC queue, with the consumer side simplified.
+// https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+//
+// There is no blocking here: offer() returns false if the buffer is full, poll() returns
+// null if it is empty. Waiting is up to the caller (see WriteBehindBuffer).
+// ---
+
+final class MpscRingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // Written by the consumer only, read by the producers through size()
+    private volatile long head = 0;
+
+    MpscRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of 2 and at least 2, is " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    // ---
+    // Called by any producer. Returns false if the buffer is full.
+    // ---
+
+    boolean offer(@NotNull T item) {
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) (position & mask);
+            final long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, item);
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+                // another producer got there first, try again
+            } else if (diff < 0) {
+                // the slot still holds the item of the previous turn
+                return false;
+            }
+            // else "tail" has moved on since we read it, try again
+        }
+    }
+
+    // ---
+    // Called by the single consumer. Returns null if the buffer is empty (or if the next
+    // item has been claimed by a producer but is not published yet).
+    // ---
+
+    @Nullable T poll() {
+        final long position = head;
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        final T item = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, position + mask + 1); // free for the next turn
+        head = position + 1;
+        return item;
+    }
+
+    // ---
+    // Approximate number of items in the buffer, for deciding whether to wake up the consumer
+    // ---
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+}
@@ -0,0 +1,266 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.*;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+import org.h2.mvstore.type.LongDataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ---
+// A MessageStore built directly on H2's storage engine, the MVStore, without SQL parsing,
+// JDBC, Spring or a connection pool in-between. It is there to measure what that layer costs.
+// https://h2database.com/html/mvstore.html
+//
+// All the messages are kept in a single MVMap, keyed by (receiver, state, id) packed into a long:
+//
+//   bits 63..34: receiver (must be in [0, 2^29))
+//   bits 33..32: state (see MsgState.getRaw())
+//   bits 31..0 : id
+//
+// The messages of a receiver in a given state are thus contiguous in the map and ordered by id,
+// so claiming the oldest "fresh" messages of a receiver is a scan from the first key of that
+// range. A state change moves the message to another key: remove() under the old key, then
+// put() under the new one. The value holds the rest (sender, ack or not, acked id, times, text),
+// written by StoredMsgType in a compact binary form.
+//
+// An MVMap can be used by several threads at once, and each single put() or remove() is atomic.
+// A consumer owns a message once its remove() under the "fresh" key has returned it, so two
+// consumers never claim the same message. A state change as a whole is not atomic, though:
+// a reader may miss a message that is between its two keys, and with a file, a crash between
+// the two loses the message. H2's transactional maps (org.h2.mvstore.tx) would prevent that,
+// at a cost.
+//
+// Without a file, the store is in memory only. With a file, changes are written out in the
+// background (the MVStore's "auto-commit", by default after 1s); there is no sync to disk per
+// operation.
+//
+// Message ids come from an AtomicInteger, which starts after the largest id found in the file.
+// Backlog counters are kept as in Db, see BacklogCounters.
+// ---
+
+public class MvStoreMessageStore implements MessageStore, AutoCloseable {
+
+    private final static String mapName = "message";
+
+    // ---
+    // What is stored for a message besides its key. Times are in microseconds since the epoch,
+    // "ackedWhen_us" is 0 as long as the message has not been acked. "ackedId" is the id of the
+    // acked true message for an ack message, 0 otherwise.
+    // ---
+
+    private record StoredMsg(int sender, boolean isAck, int ackedId, long createdWhen_us, long ackedWhen_us, @NotNull String text) {
+
+        @NotNull StoredMsg withAckedWhen(long ackedWhen_us) {
+            return new StoredMsg(sender, isAck, ackedId, createdWhen_us, ackedWhen_us, text);
+        }
+    }
+
+    // ---
+    // Serialization of StoredMsg, with variable-length ints so that small values take one byte
+    // ---
+
+    private static final class StoredMsgType extends BasicDataType<StoredMsg> {
+
+        private final static StoredMsgType INSTANCE = new StoredMsgType();
+
+        @Override
+        public int getMemory(StoredMsg obj) {
+            return 64 + 2 * obj.text().length();
+        }
+
+        @Override
+        public void write(WriteBuffer buff, StoredMsg obj) {
+            buff.putVarInt(obj.sender());
+            buff.put((byte) (obj.isAck() ? 1 : 0));
+            buff.putVarInt(obj.ackedId());
+            buff.putVarLong(obj.createdWhen_us());
+            buff.putVarLong(obj.ackedWhen_us());
+            buff.putVarInt(obj.text().length()).putStringData(obj.text(), obj.text().length());
+        }
+
+        @Override
+        public StoredMsg read(ByteBuffer buff) {
+            final int sender = DataUtils.readVarInt(buff);
+            final boolean isAck = buff.get() != 0;
+            final int ackedId = DataUtils.readVarInt(buff);
+            final long createdWhen_us = DataUtils.readVarLong(buff);
+            final long ackedWhen_us = DataUtils.readVarLong(buff);
+            final String text = DataUtils.readString(buff, DataUtils.readVarInt(buff));
+            return new StoredMsg(sender, isAck, ackedId, createdWhen_us, ackedWhen_us, text);
+        }
+
+        @Override
+        public StoredMsg[] createStorage(int size) {
+            return new StoredMsg[size];
+        }
+    }
+
+    private final @NotNull MVStore store;
+    private final @NotNull MVMap<Long, StoredMsg> map;
+    private final @NotNull AtomicInteger lastId = new AtomicInteger(0);
+    private final @NotNull BacklogCounters backlogCounters = new BacklogCounters();
+
+    // ---
+    // Open a store in memory if "file" is empty, otherwise in "file", which is created
+    // if it does not exist yet.
+    // ---
+
+    public MvStoreMessageStore(@NotNull Optional<Path> file) {
+        final MVStore.Builder builder = new MVStore.Builder();
+        file.ifPresent(path -> builder.fileName(path.toString()));
+        this.store = builder.open();
+        this.map = store.openMap(mapName, new MVMap.Builder<Long, StoredMsg>()
+                .keyType(LongDataType.INSTANCE)
+                .valueType(StoredMsgType.INSTANCE));
+        loadIdAndCounters();
+    }
+
+    // ---
+    // One pass over an existing map to find the largest id and count the backlogs
+    // ---
+
+    private void loadIdAndCounters() {
+        int maxId = 0;
+        for (Long key : map.keySet()) {
+            maxId = Math.max(maxId, idOf(key));
+            backlogCounters.add(new AgentId(receiverOf(key)), stateOf(key), 1);
+        }
+        lastId.set(maxId);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    // ---
+    // Key packing, see the class comment
+    // ---
+
+    private final static int receiverBits = 29;
+
+    private static long keyOf(@NotNull AgentId receiver, @NotNull MsgState state, int id) {
+        final int rawReceiver = receiver.getRaw();
+        if (rawReceiver < 0 || rawReceiver >= (1 << receiverBits)) {
+            throw new IllegalArgumentException("The receiver must be in [0, 2^" + receiverBits + "), is " + rawReceiver);
+        }
+        return ((long) rawReceiver << 34) | ((long) state.getRaw() << 32) | (id & 0xFFFF_FFFFL);
+    }
+
+    private static int receiverOf(long key) {
+        return (int) (key >>> 34);
+    }
+
+    private static @NotNull MsgState stateOf(long key) {
+        return MsgState.byCode((int) ((key >>> 32) & 0x3));
+    }
+
+    private static int idOf(long key) {
+        return (int) key;
+    }
+
+    private static long toMicros(@NotNull Instant instant) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+
+    private static @NotNull MsgBase toMsg(int id, @NotNull MsgState state, @NotNull AgentId receiver, @NotNull StoredMsg stored) {
+        if (stored.isAck()) {
+            return new AckMsg(new MsgId(id), state, new AgentId(stored.sender()), receiver, new MsgId(stored.ackedId()));
+        } else {
+            return new TrueMsg(new MsgId(id), state, new AgentId(stored.sender()), receiver, stored.text());
+        }
+    }
+
+    // ---
+    // MessageStore implementation
+    // ---
+
+    @Override
+    public @NotNull List<MsgId> sendMsgs(@NotNull List<MsgToSend> msgs) {
+        final List<MsgId> res = new ArrayList<>(msgs.size());
+        for (MsgToSend msg : msgs) {
+            final int id = lastId.incrementAndGet();
+            map.put(keyOf(msg.receiver(), MsgState.fresh, id), new StoredMsg(msg.sender().getRaw(), false, 0, toMicros(msg.createdWhen()), 0, msg.text()));
+            backlogCounters.add(msg.receiver(), MsgState.fresh, 1);
+            res.add(new MsgId(id));
+        }
+        return res;
+    }
+
+    @Override
+    public @NotNull List<MsgBase> claimMsgs(@NotNull AgentId receiver, int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("The maximum batch size must be > 0, is " + maxBatch);
+        }
+        final List<MsgBase> res = new ArrayList<>(Math.min(maxBatch, 64));
+        final long last = keyOf(receiver, MsgState.fresh, -1);
+        Long key = map.ceilingKey(keyOf(receiver, MsgState.fresh, 0));
+        while (key != null && key <= last && res.size() < maxBatch) {
+            final StoredMsg stored = map.remove(key);
+            // null if another consumer got it first
+            if (stored != null) {
+                final int id = idOf(key);
+                map.put(keyOf(receiver, MsgState.claimed, id), stored);
+                res.add(toMsg(id, MsgState.claimed, receiver, stored));
+            }
+            key = map.higherKey(key);
+        }
+        backlogCounters.move(receiver, MsgState.fresh, MsgState.claimed, res.size());
+        return res;
+    }
+
+    @Override
+    public void markClaimedMsgsAsSeen(@NotNull List<MsgId> msgIds, @NotNull Instant ackedWhen, @NotNull AgentId receiver) {
+        final long ackedWhen_us = toMicros(ackedWhen);
+        int count = 0;
+        for (MsgId msgId : msgIds) {
+            final StoredMsg stored = map.remove(keyOf(receiver, MsgState.claimed, msgId.getRaw()));
+            if (stored != null) {
+                map.put(keyOf(receiver, MsgState.seen, msgId.getRaw()), stored.withAckedWhen(ackedWhen_us));
+                count++;
+            }
+        }
+        backlogCounters.move(receiver, MsgState.claimed, MsgState.seen, count);
+        if (count != msgIds.size()) {
+            throw new IllegalStateException("Trying to acknowledge " + msgIds.size() + " claimed messages resulted in a count of " + count);
+        }
+    }
+
+    @Override
+    public @NotNull List<MsgId> ackClaimedMsgs(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs, @NotNull Instant ackedWhen) {
+        markClaimedMsgsAsSeen(trueMsgs.stream().map(MsgBase::getId).toList(), ackedWhen, receiver);
+        final long ackedWhen_us = toMicros(ackedWhen);
+        final List<MsgId> res = new ArrayList<>(trueMsgs.size());
+        for (TrueMsg trueMsg : trueMsgs) {
+            final int id = lastId.incrementAndGet();
+            map.put(keyOf(trueMsg.getSender(), MsgState.fresh, id), new StoredMsg(receiver.getRaw(), true, trueMsg.getId().getRaw(), ackedWhen_us, 0, Db.ackText(trueMsg)));
+            backlogCounters.add(trueMsg.getSender(), MsgState.fresh, 1);
+            res.add(new MsgId(id));
+        }
+        return res;
+    }
+
+    @Override
+    public long countBacklog(@NotNull AgentId receiver, @NotNull MsgState msgState) {
+        return backlogCounters.get(receiver, msgState);
+    }
+
+    @Override
+    public long countAllMsgs() {
+        return map.sizeAsLong();
+    }
+
+}
@@ -0,0 +1,366 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// ---
+// Record the exact sequence of MessageStore operations of a run into a compact binary file,
+// then replay it, single-threaded and as fast as possible, against any MessageStore.
+// Several stores can thus be measured on exactly the same work, which a run of agents
+// cannot give (the agents interleave differently on every run).
+//
+// Recording: wrap the store in a Recorder and give the Recorder to the agents. It passes
+// each operation on and appends it to the file, with its result. An operation and its record
+// happen under the Recorder's lock, so the file has the operations in the order they were done.
+// That serializes the agents' calls: a recording run is for capturing, not for measuring.
+// Reads (countBacklog(), countAllMsgs()) are not recorded, they change nothing.
+//
+// Replaying: load() the file, then replay() it. Message ids are handed out by the store
+// replayed against, so the replay maps each recorded id to the new one. A claim must return
+// the messages it returned in the recording; if it does not, the replay has diverged
+// (e.g. the store does not claim oldest first) and an IllegalStateException is thrown.
+//
+// File format: a header (magic, version), then one record per operation. All ints are
+// unsigned LEB128 varints. Times are microseconds since the epoch, as the zigzag-encoded
+// difference to the previous time in the file, mostly 1 to 3 bytes.
+//
+//   send:     op, count, count x (createdWhen, sender, receiver, text), count x returned id
+//   claim:    op, receiver, maxBatch, count, count x returned id
+//   markSeen: op, receiver, ackedWhen, count, count x id
+//   ack:      op, receiver, ackedWhen, count, count x true msg id, count x returned id
+//
+// Texts are a byte count followed by UTF-8.
+// ---
+
+public final class OpTrace {
+
+    private final static int magic = 0x4D53_4754; // "MSGT"
+    private final static int version = 1;
+
+    private final static int op_send = 1;
+    private final static int op_claim = 2;
+    private final static int op_markSeen = 3;
+    private final static int op_ack = 4;
+
+    // ---
+    // The operations, as loaded from a file
+    // ---
+
+    public sealed interface TracedOp {
+    }
+
+    public record Send(@NotNull List<MsgToSend> msgs, int @NotNull [] ids) implements TracedOp {
+    }
+
+    public record Claim(@NotNull AgentId receiver, int maxBatch, int @NotNull [] ids) implements TracedOp {
+    }
+
+    public record MarkSeen(@NotNull AgentId receiver, @NotNull Instant ackedWhen, int @NotNull [] ids) implements TracedOp {
+    }
+
+    public record Ack(@NotNull AgentId receiver, @NotNull Instant ackedWhen, int @NotNull [] trueMsgIds, int @NotNull [] ids) implements TracedOp {
+    }
+
+    public record ReplayResult(int ops, long msgsSent, @NotNull Duration elapsed) {
+    }
+
+    private OpTrace() {
+    }
+
+    // ---
+    // A MessageStore that records what goes through it to a file, see the class comment.
+    // close() flushes and closes the file, not the store.
+    // ---
+
+    public static final class Recorder implements MessageStore, AutoCloseable {
+
+        private final @NotNull MessageStore store;
+        private final @NotNull DataOutputStream out;
+        private long lastMicros = 0;
+        private int ops = 0;
+
+        public Recorder(@NotNull MessageStore store, @NotNull Path file) {
+            this.store = store;
+            try {
+                this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+                out.writeInt(magic);
+                out.writeByte(version);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        public synchronized int getOpCount() {
+            return ops;
+        }
+
+        private void writeTime(@NotNull Instant instant) throws IOException {
+            final long micros = ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+            final long delta = micros - lastMicros;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            lastMicros = micros;
+        }
+
+        private void writeIds(@NotNull List<MsgId> msgIds) throws IOException {
+            for (MsgId msgId : msgIds) {
+                writeVarLong(out, msgId.getRaw());
+            }
+        }
+
+        @Override
+        public synchronized @NotNull List<MsgId> sendMsgs(@NotNull List<MsgToSend> msgs) {
+            final List<MsgId> res = store.sendMsgs(msgs);
+            try {
+                out.writeByte(op_send);
+                writeVarLong(out, msgs.size());
+                for (MsgToSend msg : msgs) {
+                    writeTime(msg.createdWhen());
+                    writeVarLong(out, msg.sender().getRaw());
+                    writeVarLong(out, msg.receiver().getRaw());
+                    final byte[] text = msg.text().getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, text.length);
+                    out.write(text);
+                }
+                writeIds(res);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            ops++;
+            return res;
+        }
+
+        @Override
+        public synchronized @NotNull List<MsgBase> claimMsgs(@NotNull AgentId receiver, int maxBatch) {
+            final List<MsgBase> res = store.claimMsgs(receiver, maxBatch);
+            try {
+                out.writeByte(op_claim);
+                writeVarLong(out, receiver.getRaw());
+                writeVarLong(out, maxBatch);
+                writeVarLong(out, res.size());
+                writeIds(res.stream().map(MsgBase::getId).toList());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            ops++;
+            return res;
+        }
+
+        @Override
+        public synchronized void markClaimedMsgsAsSeen(@NotNull List<MsgId> msgIds, @NotNull Instant ackedWhen, @NotNull AgentId receiver) {
+            store.markClaimedMsgsAsSeen(msgIds, ackedWhen, receiver);
+            try {
+                out.writeByte(op_markSeen);
+                writeVarLong(out, receiver.getRaw());
+                writeTime(ackedWhen);
+                writeVarLong(out, msgIds.size());
+                writeIds(msgIds);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            ops++;
+        }
+
+        @Override
+        public synchronized @NotNull List<MsgId> ackClaimedMsgs(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs, @NotNull Instant ackedWhen) {
+            final List<MsgId> res = store.ackClaimedMsgs(receiver, trueMsgs, ackedWhen);
+            try {
+                out.writeByte(op_ack);
+                writeVarLong(out, receiver.getRaw());
+                writeTime(ackedWhen);
+                writeVarLong(out, trueMsgs.size());
+                writeIds(trueMsgs.stream().map(MsgBase::getId).toList());
+                writeIds(res);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            ops++;
+            return res;
+        }
+
+        @Override
+        public long countBacklog(@NotNull AgentId receiver, @NotNull MsgState msgState) {
+            return store.countBacklog(receiver, msgState);
+        }
+
+        @Override
+        public long countAllMsgs() {
+            return store.countAllMsgs();
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    // ---
+    // Load a whole trace into memory, so that decoding does not count in the replay's time
+    // ---
+
+    public static @NotNull List<TracedOp> load(@NotNull Path file) {
+        final List<TracedOp> res = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != magic) {
+                throw new IllegalArgumentException("File '" + file + "' is not a trace");
+            }
+            final int fileVersion = in.readUnsignedByte();
+            if (fileVersion != version) {
+                throw new IllegalArgumentException("Trace '" + file + "' has version " + fileVersion + ", expected " + version);
+            }
+            final long[] lastMicros = {0};
+            int op;
+            while ((op = in.read()) >= 0) {
+                res.add(switch (op) {
+                    case op_send -> {
+                        final int count = (int) readVarLong(in);
+                        final List<MsgToSend> msgs = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            final Instant createdWhen = readTime(in, lastMicros);
+                            final AgentId sender = new AgentId((int) readVarLong(in));
+                            final AgentId receiver = new AgentId((int) readVarLong(in));
+                            final byte[] text = new byte[(int) readVarLong(in)];
+                            in.readFully(text);
+                            msgs.add(new MsgToSend(createdWhen, sender, receiver, new String(text, StandardCharsets.UTF_8)));
+                        }
+                        yield new Send(msgs, readIds(in, count));
+                    }
+                    case op_claim -> {
+                        final AgentId receiver = new AgentId((int) readVarLong(in));
+                        final int maxBatch = (int) readVarLong(in);
+                        yield new Claim(receiver, maxBatch, readIds(in, (int) readVarLong(in)));
+                    }
+                    case op_markSeen -> {
+                        final AgentId receiver = new AgentId((int) readVarLong(in));
+                        final Instant ackedWhen = readTime(in, lastMicros);
+                        yield new MarkSeen(receiver, ackedWhen, readIds(in, (int) readVarLong(in)));
+                    }
+                    case op_ack -> {
+                        final AgentId receiver = new AgentId((int) readVarLong(in));
+                        final Instant ackedWhen = readTime(in, lastMicros);
+                        final int count = (int) readVarLong(in);
+                        yield new Ack(receiver, ackedWhen, readIds(in, count), readIds(in, count));
+                    }
+                    default -> throw new IllegalArgumentException("Unknown operation " + op + " in trace '" + file + "'");
+                });
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return res;
+    }
+
+    // ---
+    // Replay "ops" against "store", which should be empty. See the class comment.
+    // ---
+
+    public static @NotNull ReplayResult replay(@NotNull List<TracedOp> ops, @NotNull MessageStore store) {
+        // recorded id -> id in "store"
+        final Map<Integer, MsgId> idMap = new HashMap<>();
+        // messages claimed in "store" and not yet marked "seen", by their id in "store"
+        final Map<MsgId, MsgBase> claimed = new HashMap<>();
+        long msgsSent = 0;
+        final long start = System.nanoTime();
+        for (int index = 0; index < ops.size(); index++) {
+            final TracedOp op = ops.get(index);
+            if (op instanceof Send send) {
+                mapIds(send.ids(), store.sendMsgs(send.msgs()), idMap);
+                msgsSent += send.ids().length;
+            } else if (op instanceof Claim claim) {
+                final List<MsgBase> msgs = store.claimMsgs(claim.receiver(), claim.maxBatch());
+                if (msgs.size() != claim.ids().length) {
+                    throw new IllegalStateException("Replay diverged at operation " + index + ": claimed " + msgs.size() + " messages instead of " + claim.ids().length);
+                }
+                for (int i = 0; i < msgs.size(); i++) {
+                    final MsgBase msg = msgs.get(i);
+                    if (!msg.getId().equals(idMap.get(claim.ids()[i]))) {
+                        throw new IllegalStateException("Replay diverged at operation " + index + ": claimed " + msg.getId() + " instead of the message recorded as " + claim.ids()[i]);
+                    }
+                    claimed.put(msg.getId(), msg);
+                }
+            } else if (op instanceof MarkSeen markSeen) {
+                final List<MsgId> msgIds = new ArrayList<>(markSeen.ids().length);
+                for (int id : markSeen.ids()) {
+                    final MsgId msgId = idMap.remove(id);
+                    claimed.remove(msgId);
+                    msgIds.add(msgId);
+                }
+                store.markClaimedMsgsAsSeen(msgIds, markSeen.ackedWhen(), markSeen.receiver());
+            } else if (op instanceof Ack ack) {
+                final List<TrueMsg> trueMsgs = new ArrayList<>(ack.trueMsgIds().length);
+                for (int id : ack.trueMsgIds()) {
+                    trueMsgs.add((TrueMsg) claimed.remove(idMap.remove(id)));
+                }
+                mapIds(ack.ids(), store.ackClaimedMsgs(ack.receiver(), trueMsgs, ack.ackedWhen()), idMap);
+                msgsSent += ack.ids().length;
+            }
+        }
+        return new ReplayResult(ops.size(), msgsSent, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private static void mapIds(int @NotNull [] recordedIds, @NotNull List<MsgId> msgIds, @NotNull Map<Integer, MsgId> idMap) {
+        for (int i = 0; i < recordedIds.length; i++) {
+            idMap.put(recordedIds[i], msgIds.get(i));
+        }
+    }
+
+    // ---
+    // Encoding helpers
+    // ---
+
+    private static void writeVarLong(@NotNull DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(@NotNull DataInputStream in) throws IOException {
+        long res = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            res |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return res;
+    }
+
+    private static @NotNull Instant readTime(@NotNull DataInputStream in, long @NotNull [] lastMicros) throws IOException {
+        final long zigzag = readVarLong(in);
+        lastMicros[0] += (zigzag >>> 1) ^ -(zigzag & 1);
+        return Instant.EPOCH.plus(lastMicros[0], ChronoUnit.MICROS);
+    }
+
+    private static int @NotNull [] readIds(@NotNull DataInputStream in, int count) throws IOException {
+        final int[] res = new int[count];
+        for (int i = 0; i < count; i++) {
+            res[i] = (int) readVarLong(in);
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,64 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+// ---
+// A named set of HikariCP settings, to be picked per run.
+//
+// - "maximumPoolSize": the number of connections; threads beyond that wait for one
+// - "connectionTimeout": how long a thread waits for a connection before getting an exception
+// - "leakDetectionThreshold": if present, a connection held longer than that is logged as a
+//   possible leak (with the stack trace of where it was taken)
+//
+// This is the only place where the profiles are defined. ShardPools uses them directly. The
+// Spring-configured DataSource gets the one named like an active Spring profile (e.g.
+// "-Dspring.profiles.active=pool-small"), see SpringPoolConfig.
+// https://github.com/brettwooldridge/HikariCP#gear-configuration-knobs-baby
+// ---
+
+public record PoolProfile(@NotNull String name, int maximumPoolSize, @NotNull Duration connectionTimeout, @NotNull Optional<Duration> leakDetectionThreshold) {
+
+    public final static PoolProfile small = new PoolProfile("pool-small", 4, Duration.ofSeconds(5), Optional.of(Duration.ofSeconds(10)));
+    public final static PoolProfile standard = new PoolProfile("pool-default", 10, Duration.ofSeconds(30), Optional.empty());
+    public final static PoolProfile large = new PoolProfile("pool-large", 64, Duration.ofSeconds(30), Optional.empty());
+    public final static PoolProfile debug = new PoolProfile("pool-debug", 10, Duration.ofSeconds(2), Optional.of(Duration.ofSeconds(2)));
+
+    public final static List<PoolProfile> all = List.of(small, standard, large, debug);
+
+    // The lower bounds are those of HikariCP, which would otherwise silently change the values
+
+    public PoolProfile {
+        if (maximumPoolSize <= 0) {
+            throw new IllegalArgumentException("'maximumPoolSize' must be > 0, is " + maximumPoolSize);
+        }
+        if (connectionTimeout.toMillis() < 250) {
+            throw new IllegalArgumentException("'connectionTimeout' must be at least 250 ms, is " + connectionTimeout);
+        }
+        if (leakDetectionThreshold.isPresent() && leakDetectionThreshold.get().toMillis() < 2000) {
+            throw new IllegalArgumentException("'leakDetectionThreshold' must be at least 2 s, is " + leakDetectionThreshold.get());
+        }
+    }
+
+    public static @NotNull PoolProfile byName(@NotNull String name) {
+        return all.stream()
+                .filter(profile -> profile.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("There is no pool profile named '" + name + "'"));
+    }
+
+    public @NotNull PoolProfile withMaximumPoolSize(int maximumPoolSize) {
+        return new PoolProfile(name + "-" + maximumPoolSize, maximumPoolSize, connectionTimeout, leakDetectionThreshold);
+    }
+
+    public void applyTo(@NotNull HikariConfig config) {
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setConnectionTimeout(connectionTimeout.toMillis());
+        config.setLeakDetectionThreshold(leakDetectionThreshold.map(Duration::toMillis).orElse(0L));
+    }
+
+}
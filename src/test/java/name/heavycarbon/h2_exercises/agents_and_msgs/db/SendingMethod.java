@@ -0,0 +1,32 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+// ---
+// The Db method that inserted a message, recorded in the "sending_method" column for
+// manual debugging. In the "Verbose" schema, the name is stored. In the "Lean" schema,
+// the (small) code is stored. See Db.SchemaMode.
+// The codes must never change, otherwise existing rows are misread.
+// ---
+
+public enum SendingMethod {
+
+    sendMsgWithSimpleJdbc(1),
+    sendMsgWithSimpleJdbcReturningId(2),
+    sendMsgWithJdbcTemplate(3),
+    sendMsgWithJdbcTemplateReturningId(4),
+    sendMsgsWithSimpleJdbc(5),
+    sendMsgsWithJdbcTemplateReturningIds(6),
+    sendAckMsgReturningId(7),
+    sendAckMsgsReturningIds(8),
+    sendMsgWithBody(9),
+    processAndAckInEngine(10);
+
+    private final short code;
+
+    SendingMethod(int code) {
+        this.code = (short) code;
+    }
+
+    public short getCode() {
+        return code;
+    }
+}
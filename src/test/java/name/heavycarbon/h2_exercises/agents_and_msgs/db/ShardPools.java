@@ -0,0 +1,83 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+// ---
+// A set of "shardCount" in-memory H2 databases, each one behind its own HikariCP
+// connection pool, to be passed to Db(List<JdbcTemplate>).
+//
+// Each shard is a separate H2 database with its own MVStore and its own locks, so agents
+// writing to different shards do not contend with each other inside H2.
+//
+// The databases are named "<namePrefix>_<k>". "DB_CLOSE_DELAY=-1" keeps an in-memory
+// database alive until close() shuts it down, even when the pool has no connection open.
+// http://h2database.com/html/features.html#in_memory_databases
+//
+// These pools are not known to Spring, so there is no Spring transaction management for them.
+//
+// The pools are set up according to a PoolProfile. If a MeterRegistry is passed, each pool
+// exports its meters there, tagged with "pool" = the pool's name, e.g.:
+// - "hikaricp.connections.acquire": Timer of the time spent waiting for a connection
+// - "hikaricp.connections.active", "...idle", "...pending": Gauges of the connection counts
+// - "hikaricp.connections.timeout": Counter of the waits that ran into "connectionTimeout"
+// https://github.com/brettwooldridge/HikariCP/wiki/Dropwizard-Metrics (same names with Micrometer)
+// ---
+
+public class ShardPools implements AutoCloseable {
+
+    private final List<HikariDataSource> dataSources;
+    private final List<JdbcTemplate> jdbcTemplates;
+
+    public ShardPools(@NotNull String namePrefix, int shardCount, int poolSizePerShard) {
+        this(namePrefix, shardCount, PoolProfile.standard.withMaximumPoolSize(poolSizePerShard), Optional.empty());
+    }
+
+    public ShardPools(@NotNull String namePrefix, int shardCount, @NotNull PoolProfile profile, @NotNull Optional<MeterRegistry> meterRegistry) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("The shard count must be > 0, is " + shardCount);
+        }
+        final List<HikariDataSource> dsList = new ArrayList<>(shardCount);
+        final List<JdbcTemplate> jtList = new ArrayList<>(shardCount);
+        for (int k = 0; k < shardCount; k++) {
+            final HikariConfig config = new HikariConfig();
+            config.setJdbcUrl("jdbc:h2:mem:" + namePrefix + "_" + k + ";DB_CLOSE_DELAY=-1");
+            config.setUsername("sa");
+            config.setPassword("");
+            config.setPoolName(namePrefix + "_" + k);
+            profile.applyTo(config);
+            meterRegistry.ifPresent(registry -> config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(registry)));
+            final HikariDataSource ds = new HikariDataSource(config);
+            dsList.add(ds);
+            jtList.add(new JdbcTemplate(ds));
+        }
+        this.dataSources = Collections.unmodifiableList(dsList);
+        this.jdbcTemplates = Collections.unmodifiableList(jtList);
+    }
+
+    public @NotNull List<JdbcTemplate> getJdbcTemplates() {
+        return jdbcTemplates;
+    }
+
+    // ---
+    // Drop the in-memory databases and close the pools.
+    // ---
+
+    @Override
+    public void close() {
+        for (int k = 0; k < dataSources.size(); k++) {
+            jdbcTemplates.get(k).execute("SHUTDOWN");
+            dataSources.get(k).close();
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.Arrays;
+import java.util.List;
+
+// ---
+// Set up the HikariCP pool of the Spring-configured DataSource like a ShardPools pool:
+//
+// - If one of the active Spring profiles is named like a PoolProfile (e.g.
+//   "-Dspring.profiles.active=pool-small"), that PoolProfile is applied to the pool. PoolProfile
+//   is the only place where the pool settings are written down. Without such a profile,
+//   HikariCP's defaults apply, which are those of "pool-default".
+// - The pool exports its "hikaricp.connections.*" meters to the MeterRegistry bean, which is
+//   also the one Db uses, so a metrics dump shows both (see DbMetrics and ShardPools).
+//
+// Add this class to the "classes" of a "@SpringBootTest" to get it.
+// Without Actuator, nobody else provides a MeterRegistry bean, hence the one below.
+// ---
+
+@Slf4j
+@Configuration
+public class SpringPoolConfig {
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+
+    // ---
+    // Runs once Spring Boot has bound the "spring.datasource.hikari" properties to the
+    // DataSource, and before the pool is started (which happens on the first getConnection()),
+    // as the metrics tracker cannot be changed afterwards. Static, as a BeanPostProcessor
+    // must be created before the other beans.
+    // ---
+
+    @Bean
+    public static BeanPostProcessor hikariPoolSetup(@NotNull Environment environment, @NotNull ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(@NotNull Object bean, @NotNull String beanName) {
+                if (bean instanceof HikariDataSource ds) {
+                    final List<PoolProfile> profiles = PoolProfile.all.stream()
+                            .filter(profile -> Arrays.asList(environment.getActiveProfiles()).contains(profile.name()))
+                            .toList();
+                    if (profiles.size() > 1) {
+                        throw new IllegalStateException("More than one pool profile is active: " + profiles);
+                    }
+                    profiles.forEach(profile -> {
+                        profile.applyTo(ds);
+                        log.info("Pool of DataSource '{}' set up according to {}", beanName, profile);
+                    });
+                    ds.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry.getObject()));
+                }
+                return bean;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,85 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+// ---
+// Class holding the methods that combine several Db operations into a single
+// transaction. They are annotated "@Transactional", so Spring wraps them into a
+// transaction using Spring Aspect-Oriented-Programming.
+//
+// => This class must be a "@Component", otherwise "@Transactional" does nothing.
+// => "@Transactional" methods must be called "from other classes", here from AgentRunnable.
+//
+// All the JdbcTemplate calls made by Db inside such a method use the same connection
+// (the one bound to the transaction), which has auto-commit switched off. There is
+// a single commit when the method returns. On a file-backed H2, that means a single
+// sync to disk instead of one per statement.
+//
+// With a sharded Db (see Db and ShardPools), the transaction only covers the shard(s) whose
+// JdbcTemplate uses the Spring-managed DataSource, i.e. none if all the shards come from
+// a ShardPools. The statements on the other shards then run in auto-commit mode, one commit
+// per statement (or per JDBC batch). There is no two-phase commit across shards. An ack batch
+// may thus be partially applied if a statement fails.
+// ---
+
+@Component
+public class TransactionalDb {
+
+    private final @NotNull Db db;
+
+    @Autowired
+    public TransactionalDb(@NotNull Db db) {
+        this.db = db;
+    }
+
+    // ---
+    // Acknowledge a batch of "true messages" previously claimed by "receiver" through
+    // Db.claimMsgs(): mark them all "seen" and send an ack message for each, with one commit.
+    // If anything fails, nothing is changed. Returns the ids of the ack messages, in the order
+    // of "trueMsgs".
+    // ---
+
+    @Transactional
+    public @NotNull List<MsgId> ackBatch(@NotNull AgentId receiver, @NotNull List<TrueMsg> trueMsgs) {
+        return db.ackClaimedMsgs(receiver, trueMsgs, Instant.now());
+    }
+
+    // ---
+    // Write a batch collected by the WriteBehindBuffer, with one commit: send "msgs", mark the
+    // claimed messages in "msgIdsToMarkSeen" as "seen" and send an ack message for each of
+    // the "trueMsgsToAck". Both maps are keyed by the receiver of the claimed messages.
+    // The ids of the true messages to ack must also be in "msgIdsToMarkSeen".
+    // ---
+
+    @Transactional
+    public void writeBatch(@NotNull List<MsgToSend> msgs, @NotNull Map<AgentId, List<MsgId>> msgIdsToMarkSeen, @NotNull Map<AgentId, List<TrueMsg>> trueMsgsToAck) {
+        final Instant ackedWhen = Instant.now();
+        if (!msgs.isEmpty()) {
+            db.sendMsgsWithJdbcTemplateReturningIds(msgs);
+        }
+        msgIdsToMarkSeen.forEach((receiver, msgIds) -> db.markClaimedMsgsAsSeen(msgIds, ackedWhen, receiver));
+        trueMsgsToAck.forEach((receiver, trueMsgs) -> db.sendAckMsgsReturningIds(receiver, trueMsgs, ackedWhen));
+    }
+
+    // ---
+    // Give back messages claimed by "receiver" that could not be written by the
+    // WriteBehindBuffer, see Db.unclaimMsgs(). Returns the number of messages given back.
+    // ---
+
+    @Transactional
+    public int unclaimBatch(@NotNull AgentId receiver, @NotNull List<MsgId> msgIds) {
+        return db.unclaimMsgs(receiver, msgIds);
+    }
+
+}
@@ -0,0 +1,327 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.db;
+
+import lombok.extern.slf4j.Slf4j;
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgId;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.MsgToSend;
+import name.heavycarbon.h2_exercises.agents_and_msgs.msg.TrueMsg;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// ---
+// An optional "write-behind" layer between the agents and Db.
+//
+// The agents hand their sends and acks to this buffer and go on at once. A single writer
+// thread takes them out of the buffer and writes them through TransactionalDb.writeBatch(),
+// with one transaction (and thus one commit) per batch ("group commit"). A batch is written
+// as soon as "flushEvery" items are there, or "flushInterval" after its first item came in,
+// whichever comes first.
+//
+// The buffer is a bounded lock-free ring buffer (see MpscRingBuffer) of "capacity" items.
+// If it is full, the agent waits until the writer has made room ("backpressure").
+//
+// What is in the buffer is not in the database yet: a message sent through the buffer is
+// visible to its receiver only after the flush, and the buffered items are lost if the JVM
+// dies. windDown() writes out everything before the writer thread stops.
+//
+// Claimed messages stay in state "claimed" until their ack is flushed, so nobody else
+// picks them up in the meantime.
+//
+// If writing a batch fails, it is tried again, then split up (see flush()). What cannot be
+// written in the end is counted: the claimed messages are given back (state "fresh" again,
+// to be claimed later), the sends are lost. getLostCount() should be 0 after a run.
+// ---
+
+@Slf4j
+public class WriteBehindBuffer {
+
+    public record Config(int capacity, int flushEvery, @NotNull Duration flushInterval) {
+
+        public Config {
+            if (flushEvery <= 0 || flushEvery > capacity) {
+                throw new IllegalArgumentException("'flushEvery' must be in [1, capacity], is " + flushEvery);
+            }
+        }
+    }
+
+    // ---
+    // What can be put into the buffer
+    // ---
+
+    private sealed interface PendingWrite permits Send, MarkSeen, Ack {
+    }
+
+    private record Send(@NotNull MsgToSend msg) implements PendingWrite {
+    }
+
+    // an ack message claimed by "receiver", to be marked "seen"
+    private record MarkSeen(@NotNull AgentId receiver, @NotNull MsgId msgId) implements PendingWrite {
+    }
+
+    // a true message claimed by "receiver", to be marked "seen" and acked
+    private record Ack(@NotNull AgentId receiver, @NotNull TrueMsg trueMsg) implements PendingWrite {
+    }
+
+    private final @NotNull TransactionalDb txDb;
+    private final @NotNull Config config;
+    private final @NotNull MpscRingBuffer<PendingWrite> ring;
+    private final @NotNull Thread writer;
+
+    // This atomic boolean is used to tell the writer thread to write out everything and stop.
+
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+
+    // How often a write is tried before giving up, and the pause after the first failure,
+    // doubled after each further failure
+
+    private final static int maxAttempts = 3;
+    private final static long firstPause_ns = 10_000_000L;
+
+    // Statistics, written by the writer thread only. Read them after windDown().
+
+    private volatile long flushCount = 0;
+    private volatile long writtenCount = 0;
+    private volatile long givenBackCount = 0;
+    private volatile long lostCount = 0;
+
+    public WriteBehindBuffer(@NotNull TransactionalDb txDb, @NotNull Config config) {
+        this.txDb = txDb;
+        this.config = config;
+        this.ring = new MpscRingBuffer<>(config.capacity());
+        this.writer = new Thread(this::runWriter, "write-behind");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    // ---
+    // Called by the agents
+    // ---
+
+    public void send(@NotNull MsgToSend msg) {
+        put(new Send(msg));
+    }
+
+    public void markSeen(@NotNull AgentId receiver, @NotNull MsgId msgId) {
+        put(new MarkSeen(receiver, msgId));
+    }
+
+    public void ack(@NotNull AgentId receiver, @NotNull TrueMsg trueMsg) {
+        put(new Ack(receiver, trueMsg));
+    }
+
+    // ---
+    // Put an item into the buffer, waiting for room if it is full. The wait starts with spinning
+    // and backs off to parking for up to 1 ms.
+    // The wait is not cut short by an interrupt: the agent may have claimed messages that must
+    // be acked, and the writer is going to make room anyway. The interrupt status is kept.
+    // ---
+
+    private void put(@NotNull PendingWrite item) {
+        if (stop.get()) {
+            throw new IllegalStateException("The write-behind buffer has been wound down");
+        }
+        int attempt = 0;
+        while (!ring.offer(item)) {
+            LockSupport.unpark(writer);
+            if (attempt < 10) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, Math.min(1_000_000L, 1_000L << Math.min(attempt - 10, 10)));
+            }
+            attempt++;
+        }
+        if (ring.size() >= config.flushEvery()) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // ---
+    // Write out everything and stop the writer thread. To be called once the agents have stopped
+    // putting items, i.e. after AgentRunnable.windDown() and joining the agent threads.
+    // ---
+
+    public void windDown() {
+        stop.set(true);
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                // we really want the buffer flushed, so go on waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Write-behind buffer: {} items written in {} flushes, {} claimed messages given back, {} items lost", writtenCount, flushCount, givenBackCount, lostCount);
+    }
+
+    // ---
+    // The number of items that could not be written at all: sends that never made it to the
+    // database, and claimed messages that could neither be acked nor given back.
+    // ---
+
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    // ---
+    // The number of claimed messages that could not be marked "seen" (or acked) and were
+    // put back into state "fresh" instead
+    // ---
+
+    public long getGivenBackCount() {
+        return givenBackCount;
+    }
+
+    // ---
+    // The writer thread's loop. "stop" is read before draining, so that an item put before
+    // windDown() was called is always drained before the loop ends.
+    // ---
+
+    private void runWriter() {
+        final List<PendingWrite> batch = new ArrayList<>(config.flushEvery());
+        final long flushInterval_ns = config.flushInterval().toNanos();
+        long deadline_ns = 0;
+        while (true) {
+            final boolean stopping = stop.get();
+            PendingWrite item;
+            while (batch.size() < config.flushEvery() && (item = ring.poll()) != null) {
+                if (batch.isEmpty()) {
+                    deadline_ns = System.nanoTime() + flushInterval_ns;
+                }
+                batch.add(item);
+            }
+            if (!batch.isEmpty() && (stopping || batch.size() >= config.flushEvery() || System.nanoTime() - deadline_ns >= 0)) {
+                flush(batch);
+                batch.clear();
+            } else if (stopping && batch.isEmpty() && ring.size() == 0) {
+                return;
+            } else {
+                LockSupport.parkNanos(this, batch.isEmpty() ? flushInterval_ns : deadline_ns - System.nanoTime());
+            }
+        }
+    }
+
+    // ---
+    // Write a batch in one transaction, with up to "maxAttempts" attempts.
+    // If that does not work, the batch is split up: one transaction for all the sends, and one
+    // per receiver for the claimed messages, each with up to "maxAttempts" attempts too. So one
+    // bad item only takes down the part it is in. If the part of a receiver still fails, its
+    // claimed messages are given back (see Db.unclaimMsgs()). If the sends still fail, they
+    // are lost. The writer goes on with the next batch.
+    // ---
+
+    private void flush(@NotNull List<PendingWrite> batch) {
+        flushCount++;
+        if (write(batch)) {
+            writtenCount += batch.size();
+            return;
+        }
+        log.warn("Writing a batch of {} items failed {} times, writing it in parts", batch.size(), maxAttempts);
+        final List<PendingWrite> sends = new ArrayList<>();
+        final Map<AgentId, List<PendingWrite>> claimedByReceiver = new LinkedHashMap<>();
+        for (PendingWrite item : batch) {
+            if (item instanceof Send send) {
+                sends.add(send);
+            } else if (item instanceof MarkSeen markSeen) {
+                claimedByReceiver.computeIfAbsent(markSeen.receiver(), k -> new ArrayList<>()).add(markSeen);
+            } else {
+                final Ack ack = (Ack) item;
+                claimedByReceiver.computeIfAbsent(ack.receiver(), k -> new ArrayList<>()).add(ack);
+            }
+        }
+        if (!sends.isEmpty()) {
+            if (write(sends)) {
+                writtenCount += sends.size();
+            } else {
+                lostCount += sends.size();
+                log.error("Writing {} sends failed, they are lost", sends.size());
+            }
+        }
+        claimedByReceiver.forEach((receiver, items) -> {
+            if (write(items)) {
+                writtenCount += items.size();
+            } else {
+                giveBack(receiver, items);
+            }
+        });
+    }
+
+    // ---
+    // Put the claimed messages in "items" back into state "fresh"
+    // ---
+
+    private void giveBack(@NotNull AgentId receiver, @NotNull List<PendingWrite> items) {
+        final List<MsgId> msgIds = new ArrayList<>(items.size());
+        for (PendingWrite item : items) {
+            if (item instanceof MarkSeen markSeen) {
+                msgIds.add(markSeen.msgId());
+            } else if (item instanceof Ack ack) {
+                msgIds.add(ack.trueMsg().getId());
+            } else {
+                throw new IllegalArgumentException("Not a claimed message: " + item);
+            }
+        }
+        try {
+            final int count = txDb.unclaimBatch(receiver, msgIds);
+            givenBackCount += count;
+            // the others were no longer "claimed", so there is nothing we can do about them
+            lostCount += msgIds.size() - count;
+            log.warn("Gave back {} of {} messages claimed by {}", count, msgIds.size(), receiver);
+        } catch (RuntimeException ex) {
+            lostCount += msgIds.size();
+            log.error("Giving back {} messages claimed by {} failed, they stay 'claimed'", msgIds.size(), receiver, ex);
+        }
+    }
+
+    // ---
+    // Write "items" in one transaction, with up to "maxAttempts" attempts.
+    // Returns whether that worked.
+    // ---
+
+    private boolean write(@NotNull List<PendingWrite> items) {
+        final List<MsgToSend> msgs = new ArrayList<>();
+        final Map<AgentId, List<MsgId>> msgIdsToMarkSeen = new LinkedHashMap<>();
+        final Map<AgentId, List<TrueMsg>> trueMsgsToAck = new LinkedHashMap<>();
+        for (PendingWrite item : items) {
+            if (item instanceof Send send) {
+                msgs.add(send.msg());
+            } else if (item instanceof MarkSeen markSeen) {
+                msgIdsToMarkSeen.computeIfAbsent(markSeen.receiver(), k -> new ArrayList<>()).add(markSeen.msgId());
+            } else {
+                final Ack ack = (Ack) item;
+                msgIdsToMarkSeen.computeIfAbsent(ack.receiver(), k -> new ArrayList<>()).add(ack.trueMsg().getId());
+                trueMsgsToAck.computeIfAbsent(ack.receiver(), k -> new ArrayList<>()).add(ack.trueMsg());
+            }
+        }
+        long pause_ns = firstPause_ns;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                txDb.writeBatch(msgs, msgIdsToMarkSeen, trueMsgsToAck);
+                return true;
+            } catch (RuntimeException ex) {
+                if (attempt >= maxAttempts) {
+                    log.warn("Writing {} items failed on attempt {}", items.size(), attempt, ex);
+                    return false;
+                }
+                log.debug("Writing {} items failed on attempt {}, trying again", items.size(), attempt, ex);
+                LockSupport.parkNanos(this, pause_ns);
+                pause_ns *= 2;
+            }
+        }
+    }
+
+}
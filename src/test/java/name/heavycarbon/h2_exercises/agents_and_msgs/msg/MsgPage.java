@@ -0,0 +1,21 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.msg;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Optional;
+
+// ---
+// A page of messages obtained through keyset pagination, see Db.retrieveMsgs(..., limit).
+// "continueAfter" is the continuation token: the id of the last message of the page, to be
+// passed to get the next page. It is empty if the page was not full, i.e. if there was
+// nothing more at the time of the query. It is just a MsgId, so it can be stored somewhere
+// to resume after a restart.
+// ---
+
+public record MsgPage(@NotNull List<MsgBase> msgs, @NotNull Optional<MsgId> continueAfter) {
+
+    public boolean isLast() {
+        return continueAfter.isEmpty();
+    }
+}
@@ -6,11 +6,14 @@ import org.jetbrains.annotations.NotNull;
 // Messages have a "state". A message just sent is in state "fresh". After reception,
 // the receiving agent updates the message's state to "seen" so that the
 // messages are not picked up again during the next poll.
+// A receiving agent may also "claim" a batch of "fresh" messages in a single statement,
+// which moves them to state "claimed". Claimed messages belong to the claiming consumer
+// and cannot be picked up by another one. The consumer then moves them to "seen".
 // ---
 
 public enum MsgState {
 
-    fresh(0), seen(1);
+    fresh(0), seen(1), claimed(2);
 
     private final int code;
 
@@ -22,6 +25,7 @@ public enum MsgState {
         return switch (code) {
             case 0 -> fresh;
             case 1 -> seen;
+            case 2 -> claimed;
             default -> throw new IllegalArgumentException("No 'state' exists for code " + code);
         };
     }
@@ -0,0 +1,14 @@
+package name.heavycarbon.h2_exercises.agents_and_msgs.msg;
+
+import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+
+// ---
+// A "true message" that has not been sent yet, and thus has no MsgId yet.
+// Used to hand several messages at once to the batch-sending methods of Db.
+// ---
+
+public record MsgToSend(@NotNull Instant createdWhen, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
+}
@@ -2,20 +2,63 @@ package name.heavycarbon.h2_exercises.agents_and_msgs.msg;
 
 import name.heavycarbon.h2_exercises.agents_and_msgs.agent.AgentId;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Objects;
+import java.util.function.Supplier;
+
+// ---
+// A TrueMsg carries a text. A short text is stored in the message table itself. A large one
+// ("body") is stored in a separate table, and the message table only holds its beginning
+// (the "preview"). In the latter case, the text is loaded from the database on the first
+// call to getText(), through the "textLoader" passed by Db.
+// ---
 
 public class TrueMsg extends MsgBase {
 
-    private final @NotNull String text;
+    private final @NotNull String preview;
+    private final @Nullable Supplier<String> textLoader;
+
+    // Set at construction, or on the first getText(). If two threads call getText() at the
+    // same time, the text may be loaded twice, which is harmless.
+    private volatile String text;
 
     public TrueMsg(@NotNull MsgId id, @NotNull MsgState msgState, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String text) {
         super(id, msgState, sender, receiver);
         Objects.requireNonNull(text, "text");
+        this.preview = text;
+        this.textLoader = null;
         this.text = text;
     }
 
+    public TrueMsg(@NotNull MsgId id, @NotNull MsgState msgState, @NotNull AgentId sender, @NotNull AgentId receiver, @NotNull String preview, @NotNull Supplier<String> textLoader) {
+        super(id, msgState, sender, receiver);
+        Objects.requireNonNull(preview, "preview");
+        Objects.requireNonNull(textLoader, "textLoader");
+        this.preview = preview;
+        this.textLoader = textLoader;
+        this.text = null;
+    }
+
     public @NotNull String getText() {
-        return text;
+        String res = text;
+        if (res == null) {
+            assert textLoader != null;
+            res = textLoader.get();
+            text = res;
+        }
+        return res;
+    }
+
+    // ---
+    // The text as stored in the message table: the whole text, or the beginning of a large one
+    // ---
+
+    public @NotNull String getPreview() {
+        return preview;
+    }
+
+    public boolean hasBody() {
+        return textLoader != null;
     }
 }
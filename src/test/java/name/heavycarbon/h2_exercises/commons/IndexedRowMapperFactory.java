@@ -0,0 +1,91 @@
+package name.heavycarbon.h2_exercises.commons;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+// ---
+// Builds RowMappers that read the columns by index instead of by name.
+//
+// "row.getInt(name)" makes the driver resolve the name to an index on every call, i.e. once
+// per column and row. A mapper built here resolves all its columns from the ResultSet's
+// metadata when it gets the first row of a ResultSet, then reads by index. The order of the
+// columns in the query does not matter, and a missing column shows up on the first row.
+//
+// The mapping receives the resolved indices in the order of the column names passed to the
+// factory: "indices[k]" is the index of column "columns.get(k)".
+//
+// A mapper keeps the indices it has resolved, so it must not be shared between threads:
+// get a new one per query through newMapper(), which costs one small object.
+// ---
+
+public final class IndexedRowMapperFactory<T> {
+
+    // ---
+    // How the columns are looked up: by name (the driver resolves the name on every call),
+    // or by index (resolved once per ResultSet, see above). "ByName" is there for comparison.
+    // ---
+
+    public enum ColumnLookup {ByName, ByIndex}
+
+    @FunctionalInterface
+    public interface IndexedMapping<T> {
+        T mapRow(@NotNull ResultSet row, int @NotNull [] indices) throws SQLException;
+    }
+
+    private final @NotNull List<String> columns;
+    private final @NotNull IndexedMapping<T> mapping;
+
+    public IndexedRowMapperFactory(@NotNull List<String> columns, @NotNull IndexedMapping<T> mapping) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("The passed list of columns is empty!");
+        }
+        this.columns = List.copyOf(columns);
+        this.mapping = mapping;
+    }
+
+    public @NotNull RowMapper<T> newMapper() {
+        return new RowMapper<>() {
+
+            private ResultSet resolvedFor;
+            private int[] indices;
+
+            @Override
+            public T mapRow(@NotNull ResultSet row, int rowNum) throws SQLException {
+                if (row != resolvedFor) {
+                    indices = resolve(row.getMetaData());
+                    resolvedFor = row;
+                }
+                return mapping.mapRow(row, indices);
+            }
+        };
+    }
+
+    // ---
+    // Column labels are compared ignoring case, as H2 turns unquoted names into uppercase
+    // ---
+
+    private int @NotNull [] resolve(@NotNull ResultSetMetaData metaData) throws SQLException {
+        final int[] res = new int[columns.size()];
+        final int columnCount = metaData.getColumnCount();
+        for (int index = 1; index <= columnCount; index++) {
+            final String label = metaData.getColumnLabel(index);
+            for (int k = 0; k < res.length; k++) {
+                if (res[k] == 0 && columns.get(k).equalsIgnoreCase(label)) {
+                    res[k] = index;
+                }
+            }
+        }
+        for (int k = 0; k < res.length; k++) {
+            if (res[k] == 0) {
+                throw new IllegalStateException("Column '" + columns.get(k) + "' is not in the result");
+            }
+        }
+        return res;
+    }
+
+}
@@ -2,9 +2,12 @@ package name.heavycarbon.h2_exercises.transactions.db;
 
 import lombok.extern.slf4j.Slf4j;
 import name.heavycarbon.h2_exercises.commons.DbHelpers;
+import name.heavycarbon.h2_exercises.commons.IndexedRowMapperFactory;
+import name.heavycarbon.h2_exercises.commons.IndexedRowMapperFactory.ColumnLookup;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Component;
 
@@ -21,8 +24,10 @@ import java.util.Optional;
 // None of the methods of this class are marked "transactional".
 // However, methods calling methods of this class will be marked "transactional".
 //
-// This class could create a good part of the query texts at startup instead of
-// again and again at method call, but we will leave that for later.
+// The query texts are created once at class initialization instead of again and
+// again at method call, see the "statement registry" below. One set of query texts
+// exists per table ("stuff" or "alternate stuff") so that the "alternate" switch only
+// selects among already-built texts.
 //
 // Table and field naming
 // - - - - - - - - - - - -
@@ -45,8 +50,7 @@ import java.util.Optional;
 @Component
 public class Db {
 
-    @Autowired
-    private @NotNull JdbcTemplate jdbcTemplate;
+    private final @NotNull JdbcTemplate jdbcTemplate;
 
     public final static String schemaName = "testing_transactions";
 
@@ -66,6 +70,119 @@ public class Db {
     public final static String field_ensemble = "ensemble"; // used in selection predicates
     public final static String field_payload = "payload"; // arbitrary text payload
 
+    // ---
+    // Statement registry, static part: the query texts for one table, built once.
+    // ---
+
+    private record StuffSql(@NotNull String readById,
+                            @NotNull String readByEnsemble,
+                            @NotNull String readAll,
+                            @NotNull String updatePayloadById,
+                            @NotNull String deleteById) {
+
+        static @NotNull StuffSql build(@NotNull String fqTableName) {
+            final String selectFrom = "SELECT "
+                    + field_id + ","
+                    + field_ensemble + ","
+                    + field_payload
+                    + " FROM "
+                    + fqTableName;
+            return new StuffSql(
+                    selectFrom
+                            + " WHERE "
+                            + field_id + " = ?",
+                    selectFrom
+                            + " WHERE "
+                            + field_ensemble + " = ? "
+                            + " ORDER BY "
+                            + field_id,
+                    selectFrom
+                            + " ORDER BY "
+                            + field_id,
+                    "UPDATE "
+                            + fqTableName
+                            + " SET "
+                            + field_payload
+                            + " = ? "
+                            + " WHERE "
+                            + field_id
+                            + " = ?",
+                    "DELETE FROM "
+                            + fqTableName
+                            + " WHERE "
+                            + field_id
+                            + " = ?");
+        }
+    }
+
+    private final static StuffSql sql_stuff = StuffSql.build(fqTableName_stuff);
+    private final static StuffSql sql_alternateStuff = StuffSql.build(fqTableName_alternateStuff);
+
+    private static @NotNull StuffSql sqlFor(boolean alternate) {
+        return (alternate ? sql_alternateStuff : sql_stuff);
+    }
+
+    // The remaining query texts only exist for table "stuff"
+
+    private final static String sql_readByPayloadSuffix = "SELECT "
+            + field_id + ","
+            + field_ensemble + ","
+            + field_payload
+            + " FROM "
+            + fqTableName_stuff
+            + " WHERE "
+            + field_payload + " LIKE CONCAT('%',?) ESCAPE '!' "
+            + " ORDER BY "
+            + field_id;
+
+    private final static String sql_readByEnsembleAndPayloadSuffix = "SELECT "
+            + field_id + ","
+            + field_ensemble + ","
+            + field_payload
+            + " FROM "
+            + fqTableName_stuff
+            + " WHERE "
+            + field_payload + " LIKE CONCAT('%',?) ESCAPE '!' "
+            + " AND "
+            + field_ensemble + " = ? "
+            + " ORDER BY "
+            + field_id;
+
+    private final static String sql_updateEnsembleById = "UPDATE "
+            + fqTableName_stuff
+            + " SET "
+            + field_ensemble
+            + " = ? "
+            + " WHERE "
+            + field_id
+            + " = ?";
+
+    // ---
+    // Statement registry, instance part: one SimpleJdbcInsert per kind of insert.
+    // A SimpleJdbcInsert is thread-safe once configured and loads the table metadata only
+    // once, when compiled on first use. As the tables are dropped and recreated with
+    // identical columns between tests, the compiled metadata stays valid.
+    // ---
+
+    private final @NotNull SimpleJdbcInsert insert_stuffReturningKey;
+    private final @NotNull SimpleJdbcInsert insert_stuff;
+    private final @NotNull SimpleJdbcInsert insert_alternateStuff;
+
+    @Autowired
+    public Db(@NotNull JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.insert_stuffReturningKey = new SimpleJdbcInsert(jdbcTemplate)
+                .withSchemaName(schemaName)
+                .withTableName(tableName_stuff)
+                .usingGeneratedKeyColumns(field_id);
+        this.insert_stuff = new SimpleJdbcInsert(jdbcTemplate)
+                .withSchemaName(schemaName)
+                .withTableName(tableName_stuff);
+        this.insert_alternateStuff = new SimpleJdbcInsert(jdbcTemplate)
+                .withSchemaName(schemaName)
+                .withTableName(tableName_alternateStuff);
+    }
+
     // ---
 
     private void createStuffTableWithAutoincrementId() {
@@ -114,7 +231,7 @@ public class Db {
     }
 
     // ---
-    // Retrieve 0 or 1 record of type "Stuff" by primary key "id"
+    // Transforming a row into a "Stuff", looking up the columns by name
     // ---
 
     private static Stuff rowMapper_stuff(@NotNull ResultSet row, int rowNum) throws SQLException {
@@ -124,6 +241,43 @@ public class Db {
         return new Stuff(id, ensembleId, payload);
     }
 
+    // ---
+    // The same as rowMapper_stuff(), but reading the columns by index, resolved once per
+    // ResultSet (see IndexedRowMapperFactory). "col_..." are positions in "columns_stuff".
+    // This is what stuffMapper() hands out, unless switched to "ByName" for comparison
+    // (see setColumnLookup()).
+    // ---
+
+    private final static List<String> columns_stuff = List.of(field_id, field_ensemble, field_payload);
+    private final static int col_id = 0;
+    private final static int col_ensemble = 1;
+    private final static int col_payload = 2;
+
+    private final static IndexedRowMapperFactory<Stuff> mappers_stuff = new IndexedRowMapperFactory<>(
+            columns_stuff,
+            (row, indices) -> new Stuff(
+                    new StuffId(row.getInt(indices[col_id])),
+                    new EnsembleId(row.getInt(indices[col_ensemble])),
+                    row.getString(indices[col_payload])));
+
+    private volatile @NotNull ColumnLookup columnLookup = ColumnLookup.ByIndex;
+
+    public void setColumnLookup(@NotNull ColumnLookup columnLookup) {
+        this.columnLookup = columnLookup;
+    }
+
+    // ---
+    // A RowMapper for one query; not to be shared between threads
+    // ---
+
+    private @NotNull RowMapper<Stuff> stuffMapper() {
+        return (columnLookup == ColumnLookup.ByIndex) ? mappers_stuff.newMapper() : Db::rowMapper_stuff;
+    }
+
+    // ---
+    // Retrieve 0 or 1 record of type "Stuff" by primary key "id"
+    // ---
+
     public @NotNull Optional<Stuff> readById(@NotNull StuffId stuffId) {
         return readById(stuffId, false);
     }
@@ -133,16 +287,7 @@ public class Db {
     }
 
     private @NotNull Optional<Stuff> readById(@NotNull StuffId stuffId, boolean alternate) {
-        final String localTableName = (alternate ? fqTableName_alternateStuff : fqTableName_stuff);
-        final String sql = "SELECT "
-                + field_id + ","
-                + field_ensemble + ","
-                + field_payload
-                + " FROM "
-                + localTableName
-                + " WHERE "
-                + field_id + " = ?";
-        List<Stuff> list = jdbcTemplate.query(sql, Db::rowMapper_stuff, stuffId.getRaw());
+        List<Stuff> list = jdbcTemplate.query(sqlFor(alternate).readById(), stuffMapper(), stuffId.getRaw());
         if (list.isEmpty()) {
             return Optional.empty();
         } else {
@@ -164,18 +309,7 @@ public class Db {
     }
 
     private @NotNull List<Stuff> readByEnsemble(@NotNull EnsembleId ensembleId, boolean alternate) {
-        final String localTableName = (alternate ? fqTableName_alternateStuff : fqTableName_stuff);
-        final String sql = "SELECT "
-                + field_id + ","
-                + field_ensemble + ","
-                + field_payload
-                + " FROM "
-                + localTableName
-                + " WHERE "
-                + field_ensemble + " = ? "
-                + " ORDER BY "
-                + field_id;
-        return jdbcTemplate.query(sql, Db::rowMapper_stuff, ensembleId.getRaw());
+        return jdbcTemplate.query(sqlFor(alternate).readByEnsemble(), stuffMapper(), ensembleId.getRaw());
     }
 
     // ---
@@ -192,16 +326,7 @@ public class Db {
     }
 
     private @NotNull List<Stuff> readAll(boolean alternate) {
-        final String localTableName = (alternate ? fqTableName_alternateStuff : fqTableName_stuff);
-        final String sql = "SELECT "
-                + field_id + ","
-                + field_ensemble + ","
-                + field_payload
-                + " FROM "
-                + localTableName
-                + " ORDER BY "
-                + field_id;
-        return jdbcTemplate.query(sql, Db::rowMapper_stuff);
+        return jdbcTemplate.query(sqlFor(alternate).readAll(), stuffMapper());
     }
 
     // See https://stackoverflow.com/questions/8247970/using-like-wildcard-in-prepared-statement
@@ -220,17 +345,7 @@ public class Db {
     // ---
 
     public @NotNull List<Stuff> readByPayloadSuffix(@NotNull String suffix) {
-        final String sql = "SELECT "
-                + field_id + ","
-                + field_ensemble + ","
-                + field_payload
-                + " FROM "
-                + fqTableName_stuff
-                + " WHERE "
-                + field_payload + " LIKE CONCAT('%',?) ESCAPE '!' "
-                + " ORDER BY "
-                + field_id;
-        return jdbcTemplate.query(sql, Db::rowMapper_stuff, escapeSearchString(suffix));
+        return jdbcTemplate.query(sql_readByPayloadSuffix, stuffMapper(), escapeSearchString(suffix));
     }
 
     // ---
@@ -240,19 +355,7 @@ public class Db {
     // ---
 
     public @NotNull List<Stuff> readByEnsembleAndPayloadSuffix(@NotNull EnsembleId ensembleId, @NotNull String suffix) {
-        final String sql = "SELECT "
-                + field_id + ","
-                + field_ensemble + ","
-                + field_payload
-                + " FROM "
-                + fqTableName_stuff
-                + " WHERE "
-                + field_payload + " LIKE CONCAT('%',?) ESCAPE '!' "
-                + " AND "
-                + field_ensemble + " = ? "
-                + " ORDER BY "
-                + field_id;
-        return jdbcTemplate.query(sql, Db::rowMapper_stuff, escapeSearchString(suffix), ensembleId.getRaw());
+        return jdbcTemplate.query(sql_readByEnsembleAndPayloadSuffix, stuffMapper(), escapeSearchString(suffix), ensembleId.getRaw());
     }
 
     // ---
@@ -272,11 +375,7 @@ public class Db {
 
     public StuffId insert(@NotNull EnsembleId ensembleId, @NotNull String payload) {
         // Not sure whether I need to additionally specify usingColumns() ???
-        final Number num = new SimpleJdbcInsert(jdbcTemplate)
-                .withSchemaName(schemaName)
-                .withTableName(tableName_stuff)
-                .usingGeneratedKeyColumns(field_id)
-                .executeAndReturnKey(makeMapForRow(ensembleId, payload));
+        final Number num = insert_stuffReturningKey.executeAndReturnKey(makeMapForRow(ensembleId, payload));
         return new StuffId(num.intValue());
     }
 
@@ -313,12 +412,9 @@ public class Db {
     // ---
 
     private void insert(@NotNull Stuff stuff, boolean alternate) {
-        final String localTableName = (alternate ? tableName_alternateStuff : tableName_stuff);
+        final SimpleJdbcInsert localInsert = (alternate ? insert_alternateStuff : insert_stuff);
         // Not sure whether I need to additionally specify usingColumns() ???
-        final int count = new SimpleJdbcInsert(jdbcTemplate)
-                .withSchemaName(schemaName)
-                .withTableName(localTableName)
-                .execute(makeMapForRow(stuff));
+        final int count = localInsert.execute(makeMapForRow(stuff));
         assert count == 1;
     }
 
@@ -346,15 +442,7 @@ public class Db {
     // ---
 
     private boolean updatePayloadById(@NotNull StuffId stuffId, @NotNull String payload, boolean alternate) {
-        final String localTableName = (alternate ? fqTableName_alternateStuff : fqTableName_stuff);
-        final int count = jdbcTemplate.update("UPDATE "
-                + localTableName
-                + " SET "
-                + field_payload
-                + " = ? "
-                + " WHERE "
-                + field_id
-                + " = ?", payload, stuffId.getRaw());
+        final int count = jdbcTemplate.update(sqlFor(alternate).updatePayloadById(), payload, stuffId.getRaw());
         assert count >= 0 && count <= 1;
         return count == 1;
     }
@@ -365,14 +453,7 @@ public class Db {
     // ---
 
     public boolean updateEnsembleById(@NotNull StuffId stuffId, @NotNull EnsembleId ensembleId) {
-        final int count = jdbcTemplate.update("UPDATE "
-                + fqTableName_stuff
-                + " SET "
-                + field_ensemble
-                + " = ? "
-                + " WHERE "
-                + field_id
-                + " = ?", ensembleId.getRaw(), stuffId.getRaw());
+        final int count = jdbcTemplate.update(sql_updateEnsembleById, ensembleId.getRaw(), stuffId.getRaw());
         assert count >= 0 && count <= 1;
         return count == 1;
     }
@@ -398,12 +479,7 @@ public class Db {
     // ---
 
     public boolean deleteById(@NotNull StuffId stuffId, boolean alternate) {
-        final String localTableName = (alternate ? fqTableName_alternateStuff : fqTableName_stuff);
-        final int count = jdbcTemplate.update("DELETE FROM "
-                + localTableName
-                + " WHERE "
-                + field_id
-                + " = ?", stuffId.getRaw());
+        final int count = jdbcTemplate.update(sqlFor(alternate).deleteById(), stuffId.getRaw());
         assert count >= 0 && count <= 1;
         return count == 1;
     }